@@ -0,0 +1,112 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.DataLayer;
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message formatting and parsing in the protocol layer: the fixed width fields of setName and
+ * setRestriction and the SMDR record parser, against the map building parser the gateway used before
+ * {@link CallRecordParser}.  Run with -prof gc for the allocation rate of each path.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-bench.xml")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormattingBenchmark {
+    private static final String CALL_RECORD = "0333  001002919876543210    12304500042";
+
+    private NEAX7400PmsProtocolImpl protocol;
+    private final CallRecordParser callRecordParser = new CallRecordParser();
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        protocol = new NEAX7400PmsProtocolImpl();
+        protocol.setDataLayer(new DataLayer() {
+            @Override
+            public void onMessage(byte[] message) {
+            }
+
+            @Override
+            public void onMessage(byte[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void sendMessage(String message) {
+                FormattingBenchmark.this.blackhole.consume(message);
+            }
+
+            @Override
+            public void sendCommand(PbxCommand command) {
+                FormattingBenchmark.this.blackhole.consume(command);
+            }
+
+            @Override
+            public void sendCommand(PbxCommand command, Priority priority) {
+                FormattingBenchmark.this.blackhole.consume(command);
+            }
+        });
+    }
+
+    @Benchmark
+    public void setName() {
+        protocol.setName("333", "Guest Name");
+    }
+
+    @Benchmark
+    public void setRestriction() {
+        protocol.setRestriction("333", "1");
+    }
+
+    @Benchmark
+    public Map<String, Map<String, String>> parseCallDetails() {
+        return parseCallDetails(CALL_RECORD);
+    }
+
+    @Benchmark
+    public CallRecord parseCallRecord() {
+        return callRecordParser.parse(CALL_RECORD);
+    }
+
+    /* The parser CallRecordParser replaced, kept as the baseline */
+    private static Map<String, Map<String, String>> parseCallDetails(String message) {
+        Calendar cal = Calendar.getInstance();
+        Map<String, Map<String, String>> map = new HashMap<String, Map<String, String>>();
+        Map<String, String> callDetailsMap = new HashMap<String, String>();
+        cal.set(Calendar.HOUR_OF_DAY, Integer.parseInt(message.substring(28, 30)));
+        cal.set(Calendar.MINUTE, Integer.parseInt(message.substring(30, 32)));
+        cal.set(Calendar.SECOND, Integer.parseInt(message.substring(32, 34)));
+        cal.set(Calendar.MILLISECOND, 0);
+        String stationNumber = message.substring(0, 4);
+        String subscriberNumber = message.substring(12, 28);
+        String duration = message.substring(34, 39);
+        String startTime = message.substring(28, 30) + ":" + message.substring(30, 32) + ":"
+                + message.substring(32, 34);
+        if (Calendar.getInstance().getTime().before(cal.getTime())) {
+            cal.add(Calendar.DATE, -1);
+        }
+        callDetailsMap.put("CALLED_NO", subscriberNumber);
+        callDetailsMap.put("START_TIME", startTime);
+        callDetailsMap.put("CALL_DURATION", duration);
+        callDetailsMap.put("DATE_OF_CALL", cal.getTime().toString() + " " + startTime);
+        map.put(stationNumber, callDetailsMap);
+        return map;
+    }
+}
@@ -0,0 +1,115 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.ProtocolLayerListener;
+import in.orangecounty.tel.SerialLayer;
+import org.apache.commons.lang.ArrayUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame building and receiving in the data layer: the FrameEncoder against the string and ArrayUtils
+ * based framing it replaced, the BCC and the whole receive chain from the serial bytes through the
+ * FrameDecoder, the receive ring and the state machine to the protocol layer.  Run with -prof gc for the
+ * allocation rate of each path.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-bench.xml")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramingBenchmark {
+    private static final String SET_NAME = "1!L21266333   GUESTGUESTGUEST";
+    private static final byte STX = 2;
+    private static final byte ETX = 3;
+
+    private byte[] payload;
+    private final PbxCommand setName = PbxCommand.name("333", "GUESTGUESTGUEST");
+    private final FrameEncoder encoder = new FrameEncoder();
+    private byte[] received;
+    private HashedWheelTimer timer;
+    private DataLayerImpl dataLayer;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        payload = (SET_NAME + "\u0003").getBytes();
+        FrameEncoder callRecord = new FrameEncoder();
+        received = Arrays.copyOf(callRecord.buffer(),
+                callRecord.encode(PbxCommand.raw("0333  001002919876543210    12304500042")));
+        timer = new HashedWheelTimer("benchmark-timer", 50, TimeUnit.MILLISECONDS, 512);
+        timer.start();
+        dataLayer = new DataLayerImpl();
+        dataLayer.setTimer(timer);
+        dataLayer.setSerialLayer(new SerialLayer() {
+            @Override
+            public void setDataLayer(in.orangecounty.tel.DataLayer dataLayer) {
+            }
+
+            @Override
+            public void sendMessage(byte[] message) {
+                FramingBenchmark.this.blackhole.consume(message);
+            }
+
+            @Override
+            public void sendMessage(byte[] buffer, int offset, int length) {
+                FramingBenchmark.this.blackhole.consume(buffer);
+            }
+        });
+        dataLayer.setAppLayer(new ProtocolLayerListener() {
+            @Override
+            public void onMessage(String s) {
+                FramingBenchmark.this.blackhole.consume(s);
+            }
+        });
+        decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                dataLayer.onMessage(buffer, offset, length);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.stop();
+    }
+
+    /* How frames were built before the FrameEncoder: a String, getBytes and three array copies */
+    @Benchmark
+    public byte[] parseMessage() {
+        byte[] msg = ArrayUtils.add(SET_NAME.getBytes(), ETX);
+        byte bcc = DataLayerImpl.getBCC(msg, 0, msg.length);
+        msg = ArrayUtils.add(msg, bcc);
+        return ArrayUtils.add(msg, 0, STX);
+    }
+
+    @Benchmark
+    public int encode() {
+        return encoder.encode(setName);
+    }
+
+    @Benchmark
+    public byte getBCC() {
+        return DataLayerImpl.getBCC(payload, 0, payload.length);
+    }
+
+    /* Serial bytes of one call record frame to the protocol layer, including the ACK going back */
+    @Benchmark
+    public void receiveDataFrame() {
+        decoder.decode(received, 0, received.length);
+        dataLayer.runLoop();
+    }
+}
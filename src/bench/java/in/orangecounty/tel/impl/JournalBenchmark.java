@@ -0,0 +1,56 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost the {@link OutboundJournal} adds to every queued command: an append when it is queued and a
+ * completion when the PBX acknowledges it, with a backlog of pending commands the size of a 500 room
+ * bulk sync so completions are appended rather than rewinding the journal.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-bench.xml")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JournalBenchmark {
+    private static final PbxCommand COMMAND = PbxCommand.name("1203", "Ramapuram");
+
+    private File file;
+    private OutboundJournal journal;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("bench", ".journal");
+        journal = new OutboundJournal(file, 1 << 20, 20);
+        journal.open();
+        for (int i = 0; i < 1000; i++) {
+            journal.append(COMMAND, Priority.BULK);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        journal.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long appendAndComplete() throws IOException {
+        long sequence = journal.append(COMMAND, Priority.BULK);
+        journal.complete(sequence);
+        return sequence;
+    }
+}
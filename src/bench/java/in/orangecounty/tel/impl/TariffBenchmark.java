@@ -0,0 +1,50 @@
+package in.orangecounty.tel.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the rate of a called number in a {@link TariffTable} the size of an international
+ * tariff, 20000 prefixes with day and night bands.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-bench.xml")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TariffBenchmark {
+    private TariffTable table;
+    private final String[] numbers = new String[1024];
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder csv = new StringBuilder("prefix,description,from,to,pulse,price\n");
+        csv.append("0,STD,07:00,23:00,60,1.20\n0,STD night,23:00,07:00,120,1.20\n");
+        for (int i = 0; i < 10000; i++) {
+            String prefix = "00" + (i * 7919 % 1000000);
+            csv.append(prefix).append(",ISD,07:00,23:00,30,4.50\n");
+            csv.append(prefix).append(",ISD night,23:00,07:00,60,4.50\n");
+        }
+        table = TariffTable.load(new StringReader(csv.toString()), TimeZone.getTimeZone("UTC"));
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = "00" + (i * 104729 % 1000000) + "5551234";
+        }
+    }
+
+    @Benchmark
+    public int findRate() {
+        next = (next + 1) & (numbers.length - 1);
+        return table.find(numbers[next], next % (24 * 60));
+    }
+}
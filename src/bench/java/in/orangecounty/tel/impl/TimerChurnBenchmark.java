@@ -0,0 +1,86 @@
+package in.orangecounty.tel.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer churn as seen by the data layer: every frame re-arms the link timer, most timers are cancelled
+ * long before they expire.  Compares the scheduled thread pool the layers used to create with the shared
+ * {@link HashedWheelTimer}.  Run with -t 4 to see the effect of several links arming at once.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-bench.xml")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TimerChurnBenchmark {
+
+    private ScheduledThreadPoolExecutor executor;
+    private HashedWheelTimer wheel;
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @State(Scope.Thread)
+    public static class Link {
+        ScheduledFuture future;
+        final HashedWheelTimer.Timeout timeout = new HashedWheelTimer.Timeout() {
+            @Override
+            protected void expired(long tag) {
+            }
+        };
+    }
+
+    @Setup
+    public void setUp() {
+        executor = new ScheduledThreadPoolExecutor(3);
+        /* Otherwise cancelled tasks stay queued for their full delay and the run ends in an OutOfMemoryError */
+        executor.setRemoveOnCancelPolicy(true);
+        wheel = new HashedWheelTimer("benchmark-timer", 50, TimeUnit.MILLISECONDS, 512);
+        wheel.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        wheel.stop();
+    }
+
+    @Benchmark
+    public boolean executorArmCancel() {
+        return executor.schedule(task, 35, TimeUnit.SECONDS).cancel(false);
+    }
+
+    @Benchmark
+    public boolean wheelArmCancel(Link link) {
+        wheel.schedule(link.timeout, 35, TimeUnit.SECONDS);
+        return wheel.cancel(link.timeout);
+    }
+
+    @Benchmark
+    public ScheduledFuture executorRearm(Link link) {
+        if (link.future != null) {
+            link.future.cancel(false);
+        }
+        link.future = executor.schedule(task, 35, TimeUnit.SECONDS);
+        return link.future;
+    }
+
+    @Benchmark
+    public HashedWheelTimer.Timeout wheelRearm(Link link) {
+        wheel.schedule(link.timeout, 35, TimeUnit.SECONDS);
+        return link.timeout;
+    }
+}
@@ -0,0 +1,58 @@
+package in.orangecounty.tel.service.impl;
+
+import in.orangecounty.tel.service.ExtensionTable;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the activeExtensions response of a 2000 room property: bound to nested maps as the client
+ * used to, against {@link ExtensionsDecoder}.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-bench.xml")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtensionsBenchmark {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<HashMap<Long, HashMap<String, String>>> EXTENSIONS =
+            new TypeReference<HashMap<Long, HashMap<String, String>>>() {
+            };
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 2000; i++) {
+            json.append(i == 0 ? "" : ",").append('"').append(1000 + i).append("\":{\"")
+                    .append(i % 3 == 0 ? "false" : "true").append("\":\"Guest ").append(i).append("\"}");
+        }
+        response = json.append('}').toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public int bindToMaps() throws IOException {
+        HashMap<Long, HashMap<String, String>> extensions =
+                MAPPER.readValue(new ByteArrayInputStream(response), EXTENSIONS);
+        return extensions.size();
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        ExtensionTable extensions = ExtensionsDecoder.decode(new ByteArrayInputStream(response), null);
+        return extensions.size();
+    }
+}
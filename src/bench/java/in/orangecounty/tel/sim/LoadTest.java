@@ -0,0 +1,222 @@
+package in.orangecounty.tel.sim;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+import in.orangecounty.tel.impl.DataLayerImpl;
+import in.orangecounty.tel.impl.LoopbackSerialImpl;
+import in.orangecounty.tel.impl.NEAX7400PmsProtocolImpl;
+import in.orangecounty.tel.impl.OutboundJournal;
+import in.orangecounty.tel.impl.WireTraceRecorder;
+import in.orangecounty.tel.metrics.Histogram;
+import in.orangecounty.tel.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end load test of DataLayerImpl and NEAX7400PmsProtocolImpl against the {@link PbxSimulator}.
+ * <p/>
+ * Queues a burst of name changes, the way a bulk sync does, while the simulator streams call records
+ * and injects errors, then reports throughput and the latency from setName to the PBX accepting the
+ * frame.  With --journal the outbound queue is journaled to the given file.  With --bulk the burst goes
+ * in the bulk lane the way a sync sends it, and --checkins sends that many check-in names, one every half
+ * second, while it drains.  --trace records the bytes on the line with a {@link WireTraceRecorder}.
+ * <p/>
+ * Built with the bench profile, mvn -Pbench compile, and run from target/classes:
+ * <pre>
+ * java -cp target/classes:... in.orangecounty.tel.sim.LoadTest [--commands 500] [--records 5] [--baud 1200]
+ *      [--frames 8] [--corrupt 0.02] [--nak 0.01] [--busy 0.01] [--journal /tmp/load.journal] [--bulk]
+ *      [--checkins 0] [--trace /tmp/load.trace]
+ * </pre>
+ */
+public class LoadTest {
+    private static final String SET_NAME = "1!L21266";
+    private static final long CHECKIN_INTERVAL = 500;
+
+    public static void main(String[] args) throws Exception {
+        int commands = 500;
+        double records = 5;
+        int baud = 1200;
+        int frames = 8;
+        double corrupt = 0.02;
+        double nak = 0.01;
+        double busy = 0.01;
+        String journal = null;
+        String traceFile = null;
+        boolean bulk = false;
+        int checkins = 0;
+        for (int i = 0; i < args.length; i += 2) {
+            String option = args[i];
+            if (option.equals("--bulk")) {
+                bulk = true;
+                i--;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                System.err.println("Missing value for " + option);
+                System.exit(1);
+            }
+            String value = args[i + 1];
+            if (option.equals("--commands")) {
+                commands = Integer.parseInt(value);
+            } else if (option.equals("--records")) {
+                records = Double.parseDouble(value);
+            } else if (option.equals("--baud")) {
+                baud = Integer.parseInt(value);
+            } else if (option.equals("--frames")) {
+                frames = Integer.parseInt(value);
+            } else if (option.equals("--corrupt")) {
+                corrupt = Double.parseDouble(value);
+            } else if (option.equals("--nak")) {
+                nak = Double.parseDouble(value);
+            } else if (option.equals("--busy")) {
+                busy = Double.parseDouble(value);
+            } else if (option.equals("--journal")) {
+                journal = value;
+            } else if (option.equals("--trace")) {
+                traceFile = value;
+            } else if (option.equals("--checkins")) {
+                checkins = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown option " + option);
+                System.exit(1);
+            }
+        }
+
+        final long[] issued = new long[commands];
+        final long[] accepted = new long[commands];
+        final CountDownLatch done = new CountDownLatch(commands);
+        final long[] checkinIssued = new long[checkins];
+        final long[] checkinAccepted = new long[checkins];
+        final CountDownLatch checkinsDone = new CountDownLatch(checkins);
+
+        LoopbackSerialImpl line = new LoopbackSerialImpl();
+        DataLayerImpl dataLayer = new DataLayerImpl();
+        NEAX7400PmsProtocolImpl protocol = new NEAX7400PmsProtocolImpl();
+        PbxSimulator pbx = new PbxSimulator(line);
+        line.setBaudRate(baud);
+        line.setDataLayer(dataLayer);
+        dataLayer.setSerialLayer(line);
+        dataLayer.setAppLayer(protocol);
+        dataLayer.setMaxFramesPerSession(frames);
+        MetricsRegistry metrics = new MetricsRegistry();
+        dataLayer.setMetrics(metrics, "link");
+        protocol.setDataLayer(dataLayer);
+        if (journal != null) {
+            dataLayer.setJournal(new OutboundJournal(new File(journal), 1 << 20, 20));
+        }
+        WireTraceRecorder trace = null;
+        if (traceFile != null) {
+            trace = new WireTraceRecorder(new File(traceFile), 4 << 20);
+            trace.open();
+            line.setWireTrace(trace);
+        }
+        pbx.setCallRecordsPerSecond(records);
+        pbx.setCorruptRate(corrupt);
+        pbx.setNakRate(nak);
+        pbx.setBusyRate(busy);
+        pbx.setCommandListener(new PbxSimulator.CommandListener() {
+            @Override
+            public void onCommand(String command) {
+                if (command.startsWith(SET_NAME)) {
+                    String name = command.substring(SET_NAME.length() + 6).trim();
+                    if (name.startsWith("LOAD")) {
+                        int index = Integer.parseInt(name.substring(4));
+                        if (accepted[index] == 0) {
+                            accepted[index] = System.nanoTime();
+                            done.countDown();
+                        }
+                    } else if (name.startsWith("CHK")) {
+                        int index = Integer.parseInt(name.substring(3));
+                        if (checkinAccepted[index] == 0) {
+                            checkinAccepted[index] = System.nanoTime();
+                            checkinsDone.countDown();
+                        }
+                    }
+                }
+            }
+        });
+
+        line.start();
+        dataLayer.start();
+        pbx.start();
+
+        long started = System.nanoTime();
+        for (int i = 0; i < commands; i++) {
+            issued[i] = System.nanoTime();
+            String extension = String.valueOf(1000 + i % 9000);
+            String name = String.format("LOAD%06d", i);
+            if (bulk) {
+                dataLayer.sendCommand(PbxCommand.name(extension, name), Priority.BULK);
+            } else {
+                protocol.setName(extension, name);
+            }
+        }
+        for (int i = 0; i < checkins; i++) {
+            TimeUnit.MILLISECONDS.sleep(CHECKIN_INTERVAL);
+            checkinIssued[i] = System.nanoTime();
+            protocol.setName(String.valueOf(100 + i % 900), String.format("CHK%05d", i));
+        }
+        boolean finished = done.await(Math.max(60, commands * 2l), TimeUnit.SECONDS)
+                && checkinsDone.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - started;
+
+        pbx.stop();
+        dataLayer.stop();
+        line.stop();
+        if (trace != null) {
+            trace.close();
+        }
+
+        int completed = 0;
+        for (long time : accepted) {
+            completed += time == 0 ? 0 : 1;
+        }
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format("Commands      : %d of %d accepted in %.1f s%s", completed, commands, seconds,
+                finished ? "" : " (timed out)"));
+        System.out.println(String.format("Throughput    : %.2f commands/s end to end, %.2f msg/s on the link",
+                completed / seconds, dataLayer.getMessagesPerSecond()));
+        printLatency("Latency (ms)  ", issued, accepted);
+        if (checkins > 0) {
+            printLatency("Check-ins (ms)", checkinIssued, checkinAccepted);
+        }
+        for (Priority priority : Priority.values()) {
+            System.out.println(String.format("%-14s: %s", priority, dataLayer.getQueueStats(priority)));
+        }
+        System.out.println(String.format("Refused by PBX: %d", pbx.getCommandsRefused()));
+        Histogram ack = metrics.histogram("link.ack.latency");
+        System.out.println(String.format("ACK (ms)      : p50 %.1f  p99 %.1f  max %.1f, NAKs %d received %d sent, "
+                        + "%d select retries, %d ENQ polls, %d sessions aborted", ack.getPercentile(50) / 1e3,
+                ack.getPercentile(99) / 1e3, ack.getMax() / 1e3, metrics.counter("link.naks.received").getCount(),
+                metrics.counter("link.naks.sent").getCount(), metrics.counter("link.select.retries").getCount(),
+                metrics.counter("link.enq.polls").getCount(), metrics.counter("link.sessions.aborted").getCount()));
+        System.out.println(String.format("Call records  : %d generated, %d acknowledged, %d NAKed, %.1f ms mean ACK",
+                pbx.getRecordsGenerated(), pbx.getRecordsAcknowledged(), pbx.getRecordsNaked(),
+                pbx.getMeanRecordLatencyMillis()));
+        System.exit(finished ? 0 : 1);
+    }
+
+    private static void printLatency(String label, long[] issued, long[] accepted) {
+        long[] latencies = new long[issued.length];
+        int completed = 0;
+        for (int i = 0; i < issued.length; i++) {
+            if (accepted[i] != 0) {
+                latencies[completed++] = accepted[i] - issued[i];
+            }
+        }
+        if (completed > 0) {
+            Arrays.sort(latencies, 0, completed);
+            System.out.println(String.format("%s: p50 %.1f  p95 %.1f  p99 %.1f  max %.1f", label,
+                    percentile(latencies, completed, 0.50), percentile(latencies, completed, 0.95),
+                    percentile(latencies, completed, 0.99), latencies[completed - 1] / 1e6));
+        }
+    }
+
+    private static double percentile(long[] sorted, int count, double percentile) {
+        int index = (int) Math.min(count - 1, Math.ceil(percentile * count) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
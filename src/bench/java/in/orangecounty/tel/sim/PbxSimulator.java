@@ -0,0 +1,437 @@
+package in.orangecounty.tel.sim;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.impl.FrameDecoder;
+import in.orangecounty.tel.impl.LoopbackSerialImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays the NEAX7400 at the far end of a {@link LoopbackSerialImpl}.
+ * <p/>
+ * It answers the "1!" ENQ select sequence, ACKs or NAKs frames according to their BCC and hands every
+ * accepted command to a {@link CommandListener}.  It can also generate SMDR call records at a set rate
+ * and send them to the gateway with its own select sequence, corrupt a share of those frames, NAK a
+ * share of good frames and refuse a share of selects with DLE '<', to exercise the recovery paths.
+ * <p/>
+ * It keeps the names and restrictions it is set to and, if asked to, answers a status enquiry by sending
+ * each of them back in the layout it was set with.  {@link #change} alters one behind the gateway's back.
+ * <p/>
+ * Everything runs on one simulator thread.
+ */
+public class PbxSimulator implements LoopbackSerialImpl.Peer {
+    private static final Logger log = LoggerFactory.getLogger(PbxSimulator.class);
+    private static final byte STX = 2;
+    private static final byte ETX = 3;
+    private static final byte EOT = 4;
+    private static final byte ENQ = 5;
+    private static final byte ACK = 6;
+    private static final byte DLE = 16;
+    private static final byte NAK = 21;
+    private static final byte[] INIT = {'1', '!', ENQ};
+    private static final int SELECT_ATTEMPTS = 16;
+    private static final int NAK_RETRIES = 4;
+    private static final int FRAMES_PER_SESSION = 8;
+    private static final long REPLY_TIMEOUT = 3000l;
+
+    public interface CommandListener {
+        void onCommand(String command);
+    }
+
+    private enum State {
+        IDLE, RECEIVING, SELECTING, SENDING
+    }
+
+    private final LoopbackSerialImpl line;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pbx-simulator");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            handleFrame(buffer, offset, length);
+        }
+    });
+    private final Random random = new Random();
+    private CommandListener commandListener;
+    private double callRecordsPerSecond = 0;
+    private double corruptRate = 0;
+    private double nakRate = 0;
+    private double busyRate = 0;
+    private long firstStation = 100;
+    private long lastStation = 999;
+    private boolean statusReplies = false;
+    /* Name and restriction commands last accepted, by extension */
+    private final Map<String, String> names = new TreeMap<String, String>();
+    private final Map<String, String> restrictions = new TreeMap<String, String>();
+
+    private State state = State.IDLE;
+    private final Deque<String> pendingRecords = new ArrayDeque<String>();
+    private byte[] lastReply;
+    private int attempts;
+    private int sessionFrames;
+    private long frameSentAt;
+    private ScheduledFuture<?> timeout;
+    private ScheduledFuture<?> generator;
+
+    private final AtomicLong commandsAccepted = new AtomicLong();
+    private final AtomicLong commandsRefused = new AtomicLong();
+    private final AtomicLong recordsGenerated = new AtomicLong();
+    private final AtomicLong recordsAcknowledged = new AtomicLong();
+    private final AtomicLong recordsNaked = new AtomicLong();
+    private final AtomicLong recordLatencyNanos = new AtomicLong();
+
+    public PbxSimulator(LoopbackSerialImpl line) {
+        this.line = line;
+        line.setPeer(this);
+    }
+
+    public void setCommandListener(CommandListener commandListener) {
+        this.commandListener = commandListener;
+    }
+
+    /**
+     * @param callRecordsPerSecond SMDR records to generate, 0 for none
+     */
+    public void setCallRecordsPerSecond(double callRecordsPerSecond) {
+        this.callRecordsPerSecond = callRecordsPerSecond;
+    }
+
+    /**
+     * @param corruptRate share of outgoing call record frames sent with a damaged byte
+     */
+    public void setCorruptRate(double corruptRate) {
+        this.corruptRate = corruptRate;
+    }
+
+    /**
+     * @param nakRate share of good frames from the gateway answered with NAK anyway
+     */
+    public void setNakRate(double nakRate) {
+        this.nakRate = nakRate;
+    }
+
+    /**
+     * @param busyRate share of select sequences from the gateway refused with DLE '<'
+     */
+    public void setBusyRate(double busyRate) {
+        this.busyRate = busyRate;
+    }
+
+    /**
+     * @param statusReplies true to answer status enquiries with the names and restrictions held
+     */
+    public void setStatusReplies(boolean statusReplies) {
+        this.statusReplies = statusReplies;
+    }
+
+    /**
+     * Applies a name or restriction command as if it was made at the PBX console.
+     */
+    public void change(final String command) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                remember(command);
+            }
+        });
+    }
+
+    public void setStations(long firstStation, long lastStation) {
+        this.firstStation = firstStation;
+        this.lastStation = lastStation;
+    }
+
+    public void start() {
+        if (callRecordsPerSecond > 0) {
+            long period = (long) (TimeUnit.SECONDS.toNanos(1) / callRecordsPerSecond);
+            generator = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    pendingRecords.add(nextCallRecord());
+                    recordsGenerated.incrementAndGet();
+                    select();
+                }
+            }, period, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void stop() {
+        if (generator != null) {
+            generator.cancel(false);
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void onBytes(final byte[] data) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                decoder.decode(data, 0, data.length);
+            }
+        });
+    }
+
+    public long getCommandsAccepted() {
+        return commandsAccepted.get();
+    }
+
+    public long getCommandsRefused() {
+        return commandsRefused.get();
+    }
+
+    public long getRecordsGenerated() {
+        return recordsGenerated.get();
+    }
+
+    public long getRecordsAcknowledged() {
+        return recordsAcknowledged.get();
+    }
+
+    public long getRecordsNaked() {
+        return recordsNaked.get();
+    }
+
+    /**
+     * Mean time from sending a call record frame to the gateway's ACK.
+     */
+    public double getMeanRecordLatencyMillis() {
+        long count = recordsAcknowledged.get();
+        return count == 0 ? 0 : recordLatencyNanos.get() / 1e6 / count;
+    }
+
+    private void handleFrame(byte[] buffer, int offset, int length) {
+        if (length == 3 && buffer[offset] == '1' && buffer[offset + 2] == ENQ) {
+            onSelect();
+        } else if (length > 3 && buffer[offset] == STX) {
+            onDataFrame(buffer, offset, length);
+        } else if (length == 1) {
+            switch (buffer[offset]) {
+                case ACK:
+                    onACK();
+                    break;
+                case NAK:
+                    onNAK();
+                    break;
+                case ENQ:
+                    if (state == State.RECEIVING && lastReply != null) {
+                        reply(lastReply);
+                    }
+                    break;
+                case EOT:
+                    onEOT();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void onSelect() {
+        if (state == State.SELECTING || state == State.SENDING) {
+            /* The PBX has priority, the gateway backs off */
+            return;
+        }
+        if (random.nextDouble() < busyRate) {
+            reply(new byte[]{DLE, '<'});
+            return;
+        }
+        state = State.RECEIVING;
+        reply(new byte[]{ACK});
+    }
+
+    private void onDataFrame(byte[] buffer, int offset, int length) {
+        if (state != State.RECEIVING) {
+            return;
+        }
+        byte bcc = 0;
+        for (int i = offset + 1; i < offset + length - 1; i++) {
+            bcc ^= buffer[i];
+        }
+        if (buffer[offset + length - 2] != ETX || bcc != buffer[offset + length - 1]
+                || random.nextDouble() < nakRate) {
+            commandsRefused.incrementAndGet();
+            reply(new byte[]{NAK});
+            return;
+        }
+        commandsAccepted.incrementAndGet();
+        reply(new byte[]{ACK});
+        String command = new String(buffer, offset + 1, length - 3);
+        remember(command);
+        if (statusReplies && command.startsWith(PbxCommand.Function.STATUS_ENQUIRY.getPrefix())) {
+            /* Sent once the gateway ends its session */
+            pendingRecords.addAll(restrictions.values());
+            pendingRecords.addAll(names.values());
+        }
+        if (commandListener != null) {
+            commandListener.onCommand(command);
+        }
+    }
+
+    private void remember(String command) {
+        int extensionEnd = 8 + PbxCommand.EXTENSION_WIDTH;
+        if (command.length() < extensionEnd) {
+            return;
+        }
+        String extension = command.substring(8, extensionEnd).trim();
+        if (command.startsWith(PbxCommand.Function.SET_NAME.getPrefix())) {
+            names.put(extension, command);
+        } else if (command.startsWith(PbxCommand.Function.SET_RESTRICTION.getPrefix())) {
+            restrictions.put(extension, command);
+        }
+    }
+
+    private void onEOT() {
+        cancelTimeout();
+        state = State.IDLE;
+        lastReply = null;
+        select();
+    }
+
+    private void onACK() {
+        if (state == State.SELECTING) {
+            cancelTimeout();
+            sessionFrames = 0;
+            sendRecord();
+        } else if (state == State.SENDING) {
+            cancelTimeout();
+            recordsAcknowledged.incrementAndGet();
+            recordLatencyNanos.addAndGet(System.nanoTime() - frameSentAt);
+            pendingRecords.poll();
+            sessionFrames++;
+            if (sessionFrames < FRAMES_PER_SESSION && !pendingRecords.isEmpty()) {
+                sendRecord();
+            } else {
+                endSession();
+            }
+        }
+    }
+
+    private void onNAK() {
+        if (state == State.SENDING) {
+            cancelTimeout();
+            recordsNaked.incrementAndGet();
+            if (attempts < NAK_RETRIES) {
+                attempts++;
+                transmit(pendingRecords.peek());
+            } else {
+                endSession();
+            }
+        }
+    }
+
+    private void select() {
+        if (state != State.IDLE || pendingRecords.isEmpty()) {
+            return;
+        }
+        state = State.SELECTING;
+        attempts = 1;
+        line.inject(INIT);
+        armTimeout(1000l);
+    }
+
+    private void sendRecord() {
+        state = State.SENDING;
+        attempts = 0;
+        transmit(pendingRecords.peek());
+    }
+
+    private void transmit(String record) {
+        byte[] text = record.getBytes();
+        byte[] frame = new byte[text.length + 3];
+        frame[0] = STX;
+        System.arraycopy(text, 0, frame, 1, text.length);
+        frame[text.length + 1] = ETX;
+        byte bcc = 0;
+        for (int i = 1; i < frame.length - 1; i++) {
+            bcc ^= frame[i];
+        }
+        frame[frame.length - 1] = bcc;
+        if (random.nextDouble() < corruptRate) {
+            /* Damage one character of the text so the gateway has to NAK it */
+            frame[1 + random.nextInt(text.length)] ^= 0x01;
+        }
+        frameSentAt = System.nanoTime();
+        line.inject(frame);
+        armTimeout(REPLY_TIMEOUT);
+    }
+
+    private void endSession() {
+        line.inject(new byte[]{EOT});
+        state = State.IDLE;
+        /* Leave the line free for a moment so the gateway gets a turn */
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+    }
+
+    private void onTimeout() {
+        if (state == State.SELECTING && attempts < SELECT_ATTEMPTS) {
+            attempts++;
+            line.inject(INIT);
+            armTimeout(1000l);
+        } else if (state == State.SELECTING || state == State.SENDING) {
+            log.debug("Simulator gave up waiting in state {}", state);
+            endSession();
+        }
+    }
+
+    private void armTimeout(long millis) {
+        cancelTimeout();
+        timeout = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timeout = null;
+                onTimeout();
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimeout() {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+    }
+
+    private void reply(byte[] reply) {
+        lastReply = reply;
+        line.inject(reply);
+    }
+
+    /* A record in the fixed layout read by CallRecordParser, duration as H MM SS */
+    private String nextCallRecord() {
+        Calendar now = Calendar.getInstance();
+        long station = firstStation + (long) (random.nextDouble() * (lastStation - firstStation + 1));
+        StringBuilder number = new StringBuilder("9");
+        for (int i = 0; i < 9; i++) {
+            number.append((char) ('0' + random.nextInt(10)));
+        }
+        int duration = random.nextInt(900);
+        return String.format("%-4s  %03d%03d%-16s%02d%02d%02d%d%02d%02d", station, 1 + random.nextInt(20),
+                1 + random.nextInt(60), number, now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE),
+                now.get(Calendar.SECOND), duration / 3600, duration / 60 % 60, duration % 60);
+    }
+}
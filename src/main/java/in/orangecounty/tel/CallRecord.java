@@ -0,0 +1,102 @@
+package in.orangecounty.tel;
+
+/**
+ * One SMDR call record from the PBX, with its charge once it has been rated.
+ */
+public final class CallRecord {
+    /**
+     * {@link #getCharge()} of a call no tariff was found for, which the PMS rates itself.
+     */
+    public static final long UNRATED = -1;
+
+    private final String station;
+    private final int route;
+    private final int trunk;
+    private final String calledNumber;
+    private final long startTime;
+    private final int duration;
+    private final int pulses;
+    private final long charge;
+
+    /**
+     * @param startTime start of the call, milliseconds since the epoch
+     * @param duration  length of the call in seconds
+     */
+    public CallRecord(String station, int route, int trunk, String calledNumber, long startTime, int duration) {
+        this(station, route, trunk, calledNumber, startTime, duration, 0, UNRATED);
+    }
+
+    /**
+     * @param pulses charging pulses the call was rounded up to
+     * @param charge price of the call in millionths of the currency unit, or {@link #UNRATED}
+     */
+    public CallRecord(String station, int route, int trunk, String calledNumber, long startTime, int duration,
+                      int pulses, long charge) {
+        this.station = station;
+        this.route = route;
+        this.trunk = trunk;
+        this.calledNumber = calledNumber;
+        this.startTime = startTime;
+        this.duration = duration;
+        this.pulses = pulses;
+        this.charge = charge;
+    }
+
+    public String getStation() {
+        return station;
+    }
+
+    public int getRoute() {
+        return route;
+    }
+
+    public int getTrunk() {
+        return trunk;
+    }
+
+    public String getCalledNumber() {
+        return calledNumber;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getPulses() {
+        return pulses;
+    }
+
+    public long getCharge() {
+        return charge;
+    }
+
+    public boolean isRated() {
+        return charge != UNRATED;
+    }
+
+    /**
+     * @return a copy of this call priced at the given pulses and charge
+     */
+    public CallRecord withCharge(int pulses, long charge) {
+        return new CallRecord(station, route, trunk, calledNumber, startTime, duration, pulses, charge);
+    }
+
+    /**
+     * @return a key the PMS can recognise a call by when it is posted more than once, the same for every
+     * copy of the record
+     */
+    public String getId() {
+        return station + "-" + route + "-" + trunk + "-" + startTime;
+    }
+
+    @Override
+    public String toString() {
+        return "CallRecord{station=" + station + ", route=" + route + ", trunk=" + trunk + ", calledNumber="
+                + calledNumber + ", startTime=" + startTime + ", duration=" + duration
+                + (isRated() ? ", pulses=" + pulses + ", charge=" + charge : "") + "}";
+    }
+}
@@ -0,0 +1,96 @@
+package in.orangecounty.tel;
+
+import in.orangecounty.tel.impl.CallArchive;
+import in.orangecounty.tel.impl.CallRecordExporter;
+import in.orangecounty.tel.impl.LinkManager;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls from the {@link CallArchive} as JSON, for the night audit.
+ * <pre>
+ * /calls?extension=1203&amp;night=2015-06-03                       the night from noon to noon
+ * /calls?extension=1203&amp;from=2015-06-03 18:00&amp;to=2015-06-04  a window, times or days
+ * /calls?night=2015-06-03                                      every room
+ * </pre>
+ * from is inclusive and to exclusive, to defaults to now.  Without night or from the calls of last night
+ * are returned.  At most limit calls, 1000 by default.
+ */
+public class CallsServlet extends HttpServlet {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int MAX_LIMIT = 10000;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        LinkManager linkManager = (LinkManager) getServletContext().getAttribute(StartupListener.LINK_MANAGER);
+        CallArchive archive = linkManager == null ? null : linkManager.getCallRecordPipeline().getArchive();
+        if (archive == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "No call archive");
+            return;
+        }
+        String extension = request.getParameter("extension");
+        List<CallRecord> calls;
+        try {
+            int limit = Math.min(MAX_LIMIT, request.getParameter("limit") == null ? 1000
+                    : Integer.parseInt(request.getParameter("limit")));
+            if (request.getParameter("from") != null) {
+                Date from = CallRecordExporter.parseTime(request.getParameter("from"));
+                Date to = request.getParameter("to") == null ? new Date()
+                        : CallRecordExporter.parseTime(request.getParameter("to"));
+                calls = archive.query(extension, from.getTime(), to.getTime(), limit);
+            } else {
+                Date night;
+                if (request.getParameter("night") != null) {
+                    night = new SimpleDateFormat("yyyy-MM-dd").parse(request.getParameter("night"));
+                } else {
+                    Calendar yesterday = Calendar.getInstance();
+                    yesterday.add(Calendar.DAY_OF_MONTH, -1);
+                    night = yesterday.getTime();
+                }
+                calls = archive.queryNight(extension, night, limit);
+            }
+        } catch (ParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Dates are yyyy-MM-dd or yyyy-MM-dd HH:mm");
+            return;
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit is not a number");
+            return;
+        }
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-cache");
+        MAPPER.writeValue(response.getWriter(), toJson(calls));
+    }
+
+    private static List<Map<String, Object>> toJson(List<CallRecord> calls) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        List<Map<String, Object>> json = new ArrayList<Map<String, Object>>(calls.size());
+        for (CallRecord call : calls) {
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("station", call.getStation());
+            entry.put("calledNumber", call.getCalledNumber());
+            entry.put("startTime", format.format(new Date(call.getStartTime())));
+            entry.put("duration", call.getDuration());
+            entry.put("route", call.getRoute());
+            entry.put("trunk", call.getTrunk());
+            if (call.isRated()) {
+                entry.put("pulses", call.getPulses());
+                entry.put("charge", BigDecimal.valueOf(call.getCharge(), 6).toPlainString());
+            }
+            json.add(entry);
+        }
+        return json;
+    }
+}
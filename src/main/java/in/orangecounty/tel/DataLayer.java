@@ -5,5 +5,22 @@ package in.orangecounty.tel;
  */
 public interface DataLayer {
     void onMessage(final byte[] message);
+
+    /**
+     * Called with a slice of the receive buffer holding exactly one frame.  The slice is reused once this
+     * method returns so implementations must not keep a reference to it.
+     */
+    void onMessage(final byte[] buffer, final int offset, final int length);
     void sendMessage(String message) throws RuntimeException;
+
+    /**
+     * Queues a command for the PBX in the {@link Priority#INTERACTIVE} lane.  The frame is built when the
+     * command is sent.
+     */
+    void sendCommand(PbxCommand command);
+
+    /**
+     * Queues a command for the PBX in the given lane.
+     */
+    void sendCommand(PbxCommand command, Priority priority);
 }
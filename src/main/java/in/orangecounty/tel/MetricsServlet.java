@@ -0,0 +1,26 @@
+package in.orangecounty.tel;
+
+import in.orangecounty.tel.metrics.MetricsRegistry;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * The metrics of the gateway as JSON, see {@link MetricsRegistry}.  ?flat=true gives one value per dotted
+ * name, as JMX shows them.
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        MetricsRegistry registry = MetricsRegistry.shared();
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-cache");
+        MAPPER.writeValue(response.getWriter(),
+                "true".equals(request.getParameter("flat")) ? registry.flatten() : registry.snapshot());
+    }
+}
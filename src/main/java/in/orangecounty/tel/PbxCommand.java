@@ -0,0 +1,91 @@
+package in.orangecounty.tel;
+
+/**
+ * A command for the PBX, kept as its fields so it can be encoded straight into a frame.
+ * <p/>
+ * Field widths are applied by the encoder: the extension is padded or cut to 4 characters and the
+ * name to 15.
+ */
+public final class PbxCommand {
+
+    public enum Function {
+        /* 1!L15141 EEEE__R__  0 - No restriction, 1 - Outward Restriction */
+        SET_RESTRICTION("1!L15141"),
+        /* 1!L21266 EEEE__NNNNNNNNNNNNNNN */
+        SET_NAME("1!L21266"),
+        /* 1!L7007F__ */
+        STATUS_ENQUIRY("1!L7007F"),
+        /* Preformatted message text, sent as is */
+        RAW("");
+
+        private final String prefix;
+
+        Function(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+    }
+
+    public static final int EXTENSION_WIDTH = 4;
+    public static final int NAME_WIDTH = 15;
+    private static final PbxCommand STATUS_ENQUIRY = new PbxCommand(Function.STATUS_ENQUIRY, "", "");
+
+    private final Function function;
+    private final String extension;
+    private final String argument;
+
+    private PbxCommand(Function function, String extension, String argument) {
+        this.function = function;
+        this.extension = extension;
+        this.argument = argument;
+    }
+
+    public static PbxCommand restriction(String extension, String level) {
+        return new PbxCommand(Function.SET_RESTRICTION, extension.trim(), level.trim());
+    }
+
+    public static PbxCommand name(String extension, String name) {
+        return new PbxCommand(Function.SET_NAME, extension.trim(), name == null ? "" : name);
+    }
+
+    public static PbxCommand statusEnquiry() {
+        return STATUS_ENQUIRY;
+    }
+
+    public static PbxCommand raw(String message) {
+        return new PbxCommand(Function.RAW, "", message);
+    }
+
+    public Function getFunction() {
+        return function;
+    }
+
+    /**
+     * @return the extension as given, without padding.  Empty for commands not aimed at an extension.
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return the restriction level, the name or the raw message text, depending on the function
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    @Override
+    public String toString() {
+        switch (function) {
+            case RAW:
+                return argument;
+            case STATUS_ENQUIRY:
+                return function.prefix;
+            default:
+                return function.prefix + " " + extension + " " + argument;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package in.orangecounty.tel;
+
+import in.orangecounty.tel.impl.Env;
+import in.orangecounty.tel.impl.LinkManager;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Guest events pushed by the PMS, so a check in reaches the PBX without waiting for the next sync.
+ * <p/>
+ * POST a JSON event, or an array of them:
+ * <pre>
+ * {"type": "CHECK_IN", "extension": "1203", "name": "Ramapuram"}
+ * {"type": "CHECK_OUT", "extension": "1203"}
+ * {"type": "NAME", "extension": "1203", "name": "Thomas"}
+ * </pre>
+ * or a single event as the form parameters type, extension and name.  Each event is routed to the link
+ * serving the extension and queued in its {@link Priority#INTERACTIVE} lane.
+ * <p/>
+ * Requests are handled asynchronously: the container thread is released at once and the body is read
+ * and queued on a small pool (PMS_EVENT_THREADS, 2 by default, with PMS_EVENT_QUEUE, 100, requests
+ * waiting).  The answer is 202 with the counts of events accepted and rejected, 400 if the body is not
+ * understood and 503 when the gateway is not running or too busy.
+ */
+public class PmsEventServlet extends HttpServlet {
+    private static final Logger log = LoggerFactory.getLogger(PmsEventServlet.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void init() throws ServletException {
+        int threads = Env.getInt("PMS_EVENT_THREADS", 2);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Env.getInt("PMS_EVENT_QUEUE", 100)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pms-events-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final LinkManager linkManager = (LinkManager) getServletContext().getAttribute(StartupListener.LINK_MANAGER);
+        if (linkManager == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Gateway not running");
+            return;
+        }
+        final AsyncContext async = request.startAsync();
+        /* Set by whichever answers first, the timeout or the worker */
+        final AtomicBoolean answered = new AtomicBoolean();
+        async.setTimeout(TIMEOUT);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (!answered.compareAndSet(false, true)) {
+                    return;
+                }
+                log.warn("PMS event not handled in {} ms", TIMEOUT);
+                try {
+                    ((HttpServletResponse) event.getSuppliedResponse())
+                            .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Timed out");
+                } finally {
+                    event.getAsyncContext().complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                log.warn("PMS event request failed", event.getThrowable());
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(linkManager, async, answered);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Too many PMS events waiting, request refused");
+            if (answered.compareAndSet(false, true)) {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Busy");
+                async.complete();
+            }
+        }
+    }
+
+    /*
+     * Reads and queues the events, then answers unless the timeout already has.  The request is completed
+     * by whichever of the two answers.
+     */
+    private void handle(LinkManager linkManager, AsyncContext async, AtomicBoolean answered) {
+        if (answered.get()) {
+            /* Timed out while waiting for a thread */
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) async.getRequest();
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        int accepted = 0;
+        int rejected = 0;
+        String error = null;
+        try {
+            String type = request.getParameter("type");
+            if (type != null) {
+                if (apply(linkManager, type, request.getParameter("extension"), request.getParameter("name"))) {
+                    accepted++;
+                } else {
+                    rejected++;
+                }
+            } else {
+                JsonNode events = MAPPER.readTree(request.getInputStream());
+                if (events == null || !(events.isObject() || events.isArray())) {
+                    error = "Expected an event or an array of events";
+                } else {
+                    if (events.isObject()) {
+                        ArrayNode single = MAPPER.createArrayNode();
+                        single.add(events);
+                        events = single;
+                    }
+                    for (JsonNode event : events) {
+                        if (apply(linkManager, text(event, "type"), text(event, "extension"), text(event, "name"))) {
+                            accepted++;
+                        } else {
+                            rejected++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not read PMS event", e);
+            error = "Could not read the event";
+        }
+        if (!answered.compareAndSet(false, true)) {
+            log.warn("PMS event request timed out, {} of its events were queued all the same", accepted);
+            return;
+        }
+        try {
+            if (error != null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, error);
+            } else {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setContentType("application/json");
+                response.getWriter().print("{\"accepted\":" + accepted + ",\"rejected\":" + rejected + "}");
+            }
+        } catch (IOException e) {
+            log.debug("Could not answer the PMS", e);
+        } finally {
+            async.complete();
+        }
+    }
+
+    /* Queues the event, false if it is incomplete or no PBX serves the extension */
+    private boolean apply(LinkManager linkManager, String type, String extension, String name) {
+        if (type == null || extension == null) {
+            log.warn("PMS event without type or extension: {} {}", type, extension);
+            return false;
+        }
+        log.debug("PMS event {} {} {}", type, extension, name);
+        String event = type.trim().toUpperCase();
+        if (event.equals("CHECK_IN")) {
+            return linkManager.checkIn(name == null ? "" : name, extension);
+        } else if (event.equals("CHECK_OUT")) {
+            return linkManager.checkOut(extension);
+        } else if (event.equals("NAME")) {
+            return linkManager.setName(extension, name == null ? "" : name);
+        }
+        log.warn("Unknown PMS event {} for {}", type, extension);
+        return false;
+    }
+
+    private static String text(JsonNode event, String field) {
+        JsonNode value = event.get(field);
+        return value == null || value.isNull() ? null : value.getValueAsText();
+    }
+}
@@ -0,0 +1,13 @@
+package in.orangecounty.tel;
+
+/**
+ * Outbound lanes, highest priority first.
+ */
+public enum Priority {
+    /* Check-ins, check-outs and other front desk operations */
+    INTERACTIVE,
+    /* The periodic status enquiry */
+    STATUS,
+    /* Extension syncs from the PMS */
+    BULK
+}
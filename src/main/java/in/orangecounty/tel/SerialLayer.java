@@ -6,4 +6,5 @@ package in.orangecounty.tel;
 public interface SerialLayer {
     void setDataLayer(DataLayer dataLayer);
     void sendMessage(byte[] message) throws Exception;
+    void sendMessage(byte[] buffer, int offset, int length) throws Exception;
 }
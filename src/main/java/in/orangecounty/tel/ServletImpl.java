@@ -1,22 +1,180 @@
 package in.orangecounty.tel;
 
+import in.orangecounty.tel.impl.CallArchive;
+import in.orangecounty.tel.impl.CallRecordExporter;
+import in.orangecounty.tel.impl.ExtensionDirectory;
+import in.orangecounty.tel.impl.LinkManager;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by jamsheer on 3/30/15.
+ * <p/>
+ * Lists the extensions from the {@link ExtensionDirectory}, as a page or with ?format=json as JSON, for front
+ * desk dashboards.  The answer carries the directory version as its ETag and is rendered once per version,
+ * a poll with a matching If-None-Match gets 304 without a body.
  */
 public class ServletImpl extends HttpServlet {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /* The last page and JSON rendered */
+    private volatile Rendered page = new Rendered("", null);
+    private volatile Rendered json = new Rendered("", null);
+
+    private static final class Rendered {
+        final String etag;
+        final byte[] body;
+
+        Rendered(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
 
     public void doGet(HttpServletRequest request,HttpServletResponse response)throws IOException{
-        PrintWriter out = response.getWriter();
-        out.println("<html>");
-        out.println("<body>");
-        out.println("<h1>List Extensions</h1>");
-        out.println("</body>");
-        out.println("</html>");
+        if ("/export".equals(request.getServletPath())) {
+            export(request, response);
+            return;
+        }
+        LinkManager linkManager = (LinkManager) getServletContext().getAttribute(StartupListener.LINK_MANAGER);
+        if (linkManager == null) {
+            PrintWriter out = response.getWriter();
+            out.println("<html>");
+            out.println("<body>");
+            out.println("<h1>List Extensions</h1>");
+            out.println("<p>Gateway not running</p>");
+            out.println("</body>");
+            out.println("</html>");
+            return;
+        }
+        ExtensionDirectory.Snapshot snapshot = linkManager.getDirectory().snapshot();
+        boolean asJson = "json".equals(request.getParameter("format"));
+        String etag = "\"" + snapshot.getTag() + (asJson ? "-json" : "") + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "no-cache");
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        Rendered rendered = asJson ? json : page;
+        if (!etag.equals(rendered.etag)) {
+            rendered = new Rendered(etag, asJson ? renderJson(snapshot) : renderPage(snapshot));
+            if (asJson) {
+                json = rendered;
+            } else {
+                page = rendered;
+            }
+        }
+        byte[] body = rendered.body;
+        response.setContentType(asJson ? "application/json" : "text/html; charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String candidate = tag.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] renderPage(ExtensionDirectory.Snapshot snapshot) throws IOException {
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        StringBuilder html = new StringBuilder(256 + snapshot.getEntries().size() * 96);
+        html.append("<html>\n<body>\n<h1>List Extensions</h1>\n");
+        if (snapshot.isStale()) {
+            html.append("<p>The PMS has not answered lately, rooms may be out of date</p>\n");
+        }
+        html.append("<table>\n<tr><th>Extension</th><th>Guest</th><th>Outward calls</th><th>Last call</th></tr>\n");
+        for (ExtensionDirectory.Entry entry : snapshot.getEntries()) {
+            html.append("<tr><td>").append(entry.getExtension()).append("</td><td>")
+                    .append(StringEscapeUtils.escapeHtml(entry.getName())).append("</td><td>")
+                    .append(entry.isUnrestricted() ? "allowed" : "barred").append("</td><td>")
+                    .append(entry.getLastCall() == 0 ? "" : time.format(new Date(entry.getLastCall())))
+                    .append("</td></tr>\n");
+        }
+        html.append("</table>\n</body>\n</html>\n");
+        return html.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] renderJson(ExtensionDirectory.Snapshot snapshot) throws IOException {
+        List<Map<String, Object>> rooms = new ArrayList<Map<String, Object>>(snapshot.getEntries().size());
+        for (ExtensionDirectory.Entry entry : snapshot.getEntries()) {
+            Map<String, Object> room = new LinkedHashMap<String, Object>();
+            room.put("extension", entry.getExtension());
+            room.put("name", entry.getName());
+            room.put("unrestricted", entry.isUnrestricted());
+            room.put("lastCall", entry.getLastCall() == 0 ? null : entry.getLastCall());
+            rooms.add(room);
+        }
+        Map<String, Object> directory = new LinkedHashMap<String, Object>();
+        directory.put("stale", snapshot.isStale());
+        directory.put("extensions", rooms);
+        return MAPPER.writeValueAsBytes(directory);
+    }
+
+    /*
+     * /export?from=2015-06-01&to=2015-07-01&extension=1203&minDuration=30 streams the archived calls as CSV,
+     * see CallRecordExporter.  from defaults to the start of yesterday and to to now; extension and
+     * minDuration, in seconds, are optional.
+     */
+    private void export(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        LinkManager linkManager = (LinkManager) getServletContext().getAttribute(StartupListener.LINK_MANAGER);
+        CallArchive archive = linkManager == null ? null : linkManager.getCallRecordPipeline().getArchive();
+        if (archive == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "No call archive");
+            return;
+        }
+        Date from;
+        Date to;
+        int minDuration;
+        try {
+            if (request.getParameter("from") != null) {
+                from = CallRecordExporter.parseTime(request.getParameter("from"));
+            } else {
+                Calendar yesterday = Calendar.getInstance();
+                yesterday.add(Calendar.DAY_OF_MONTH, -1);
+                yesterday.set(Calendar.HOUR_OF_DAY, 0);
+                yesterday.set(Calendar.MINUTE, 0);
+                yesterday.set(Calendar.SECOND, 0);
+                yesterday.set(Calendar.MILLISECOND, 0);
+                from = yesterday.getTime();
+            }
+            to = request.getParameter("to") == null ? new Date()
+                    : CallRecordExporter.parseTime(request.getParameter("to"));
+            minDuration = request.getParameter("minDuration") == null ? 0
+                    : Integer.parseInt(request.getParameter("minDuration"));
+        } catch (ParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Dates are yyyy-MM-dd or yyyy-MM-dd HH:mm");
+            return;
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "minDuration is not a number");
+            return;
+        }
+        response.setContentType("text/csv; charset=UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"calls-"
+                + new SimpleDateFormat("yyyyMMdd").format(from) + ".csv\"");
+        CallRecordExporter.export(archive, request.getParameter("extension"), from.getTime(), to.getTime(),
+                minDuration, response.getWriter());
     }
 }
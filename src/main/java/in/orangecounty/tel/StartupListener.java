@@ -2,7 +2,7 @@ package in.orangecounty.tel; /**
  * Created by jamsheer on 3/30/15.
  */
 
-import in.orangecounty.tel.impl.NEAX7400PmsProtocolImpl;
+import in.orangecounty.tel.impl.LinkManager;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -14,6 +14,9 @@ import javax.servlet.http.HttpSessionBindingEvent;
 public class StartupListener implements ServletContextListener,
         HttpSessionListener, HttpSessionAttributeListener {
 
+    /* Servlet context attribute holding the running LinkManager */
+    public static final String LINK_MANAGER = "linkManager";
+
     // Public constructor is required by servlet spec
     public StartupListener() {
     }
@@ -27,8 +30,9 @@ public class StartupListener implements ServletContextListener,
          You can initialize servlet context related data here.
       */
 
-        NEAX7400PmsProtocolImpl neax7400PmsProtocol = new NEAX7400PmsProtocolImpl();
-        neax7400PmsProtocol.start();
+        LinkManager linkManager = LinkManager.fromEnvironment();
+        linkManager.start();
+        sce.getServletContext().setAttribute(LINK_MANAGER, linkManager);
     }
 
     public void contextDestroyed(ServletContextEvent sce) {
@@ -39,8 +43,11 @@ public class StartupListener implements ServletContextListener,
          Application Server shuts down.
       */
 
-        NEAX7400PmsProtocolImpl neax7400PmsProtocol = new NEAX7400PmsProtocolImpl();
-        neax7400PmsProtocol.stop();
+        LinkManager linkManager = (LinkManager) sce.getServletContext().getAttribute(LINK_MANAGER);
+        if (linkManager != null) {
+            linkManager.close();
+            sce.getServletContext().removeAttribute(LINK_MANAGER);
+        }
 
     }
 
@@ -1,12 +1,27 @@
 package in.orangecounty.tel.cli;
 
-import in.orangecounty.tel.impl.NEAX7400PmsProtocolImpl;
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.impl.CallArchive;
+import in.orangecounty.tel.impl.CallRecordExporter;
+import in.orangecounty.tel.impl.LinkManager;
+import in.orangecounty.tel.impl.Reconciler;
+import in.orangecounty.tel.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
 
 /**
  * Created by thomas on 6/3/15.
@@ -15,7 +30,7 @@ public class Bootstrap {
     private static final Logger log = LoggerFactory.getLogger(Bootstrap.class);
     public static void main(String[] args) {
 
-        final NEAX7400PmsProtocolImpl neax7400PmsProtocol = new NEAX7400PmsProtocolImpl();
+        final LinkManager linkManager = LinkManager.fromEnvironment();
 
 
         Thread t2 = new Thread(new Runnable() {
@@ -34,14 +49,23 @@ public class Bootstrap {
             /* Process input commands */
             private void processCommand(String command) {
                 if(command.toUpperCase().equals("EXIT")){
-//                    serialSender.stop();
+                    linkManager.close();
                     System.exit(0);
                 } else if(command.toUpperCase().equals("STOP")){
-//                    neax7400PmsProtocol.stop();
-//                    serialSender.stop();
+                    linkManager.stop();
                 } else if(command.toUpperCase().equals("LIST")){
-//                    serialSender.listPorts();
-//                    neax7400PmsProtocol.listPorts();
+                    for (LinkManager.Link link : linkManager.getLinks()) {
+                        System.out.println(link);
+                    }
+                    System.out.println(linkManager.getCallRecordPipeline());
+                } else if(command.toUpperCase().equals("METRICS")){
+                    for (Map.Entry<String, Object> metric : MetricsRegistry.shared().flatten().entrySet()) {
+                        System.out.println(metric.getKey() + " " + metric.getValue());
+                    }
+                } else if(command.toUpperCase().startsWith("CALLS")){
+                    printCalls(command);
+                } else if(command.toUpperCase().startsWith("EXPORT")){
+                    export(command);
                 } else if(command.toUpperCase().equals("ENQ")){
                     try {
 //                        serialSender.sendMessage(new byte[]{5});
@@ -67,7 +91,11 @@ public class Bootstrap {
 //                    neax7400PmsProtocol.sendMessage("1!L15141333   0  ");
 
                 } else if(command.toUpperCase().equals("SYNC")){
-//                    neax7400PmsProtocol.sync();
+                    System.out.println(linkManager.sync());
+
+                } else if(command.toUpperCase().equals("RECONCILE")){
+                    Reconciler.Result result = linkManager.reconcile();
+                    System.out.println(result == null ? "The PMS did not answer in full, nothing reconciled" : result);
 
                 } else if(command.toUpperCase().equals("CHANGE")){
 //                    neax7400PmsProtocol.sendMessage("1!L21266333   333            ");
@@ -87,12 +115,7 @@ public class Bootstrap {
                 } else if(command.toUpperCase().equals("GETDATA")){
                    // neax7400PmsProtocol.sendMessage("1!L70078  ");
                 }else if(command.toUpperCase().equals("START")){
-
-//                        serialSender.start();
-
-//                        neax7400PmsProtocol.start();
-
-
+                    linkManager.start();
                 } else {
                     try {
                       //  neax7400PmsProtocol.sendMessage(command);
@@ -102,6 +125,87 @@ public class Bootstrap {
                 }
                 
             }
+
+            /* CALLS [extension] [yyyy-MM-dd]: the calls of a night, every room and last night by default */
+            private void printCalls(String command) {
+                CallArchive archive = linkManager.getCallRecordPipeline().getArchive();
+                if (archive == null) {
+                    System.out.println("No call archive");
+                    return;
+                }
+                String extension = null;
+                Calendar night = Calendar.getInstance();
+                night.add(Calendar.DAY_OF_MONTH, -1);
+                try {
+                    String[] words = command.trim().split("\\s+");
+                    for (int i = 1; i < words.length; i++) {
+                        if (words[i].indexOf('-') > 0) {
+                            night.setTime(new SimpleDateFormat("yyyy-MM-dd").parse(words[i]));
+                        } else {
+                            extension = words[i];
+                        }
+                    }
+                    SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                    for (CallRecord call : archive.queryNight(extension, night.getTime(), Integer.MAX_VALUE)) {
+                        System.out.println(time.format(new Date(call.getStartTime())) + " " + call.getStation()
+                                + " " + call.getCalledNumber() + " " + call.getDuration() + "s"
+                                + (call.isRated() ? " " + BigDecimal.valueOf(call.getCharge(), 6).toPlainString()
+                                : ""));
+                    }
+                } catch (ParseException e) {
+                    System.out.println("Usage: CALLS [extension] [yyyy-MM-dd]");
+                } catch (IOException e) {
+                    log.warn("Could not read the call archive", e);
+                }
+            }
+
+            /* EXPORT file from=yyyy-MM-dd [to=yyyy-MM-dd] [extension=1203] [min=30]: archived calls as CSV */
+            private void export(String command) {
+                CallArchive archive = linkManager.getCallRecordPipeline().getArchive();
+                String[] words = command.trim().split("\\s+");
+                if (archive == null || words.length < 3) {
+                    System.out.println(archive == null ? "No call archive"
+                            : "Usage: EXPORT file from=yyyy-MM-dd [to=yyyy-MM-dd] [extension=1203] [min=30]");
+                    return;
+                }
+                try {
+                    Date from = null;
+                    Date to = new Date();
+                    String extension = null;
+                    int minDuration = 0;
+                    for (int i = 2; i < words.length; i++) {
+                        String value = words[i].substring(words[i].indexOf('=') + 1);
+                        if (words[i].startsWith("from=")) {
+                            from = CallRecordExporter.parseTime(value);
+                        } else if (words[i].startsWith("to=")) {
+                            to = CallRecordExporter.parseTime(value);
+                        } else if (words[i].startsWith("extension=")) {
+                            extension = value;
+                        } else if (words[i].startsWith("min=")) {
+                            minDuration = Integer.parseInt(value);
+                        }
+                    }
+                    if (from == null) {
+                        throw new ParseException("from is required", 0);
+                    }
+                    long started = System.currentTimeMillis();
+                    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(words[1]), "UTF-8"));
+                    try {
+                        long exported = CallRecordExporter.export(archive, extension, from.getTime(), to.getTime(),
+                                minDuration, out);
+                        System.out.println("Exported " + exported + " calls to " + words[1] + " in "
+                                + (System.currentTimeMillis() - started) + " ms");
+                    } finally {
+                        out.close();
+                    }
+                } catch (ParseException e) {
+                    System.out.println("Usage: EXPORT file from=yyyy-MM-dd [to=yyyy-MM-dd] [extension=1203] [min=30]");
+                } catch (NumberFormatException e) {
+                    System.out.println("min is not a number");
+                } catch (IOException e) {
+                    log.warn("Could not export the calls to " + words[1], e);
+                }
+            }
         });
         t2.start();
 
@@ -0,0 +1,390 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every call record the gateway received, kept on disk for the night audit: all the calls from room 1203
+ * last night, say.
+ * <p/>
+ * Calls are partitioned by the local day they started in, one file per day in ARCHIVE_DIR (tel-archive in
+ * the user's home directory by default) named yyyyMMdd.cdr.  A partition is a 64 byte header holding the
+ * number of records followed by fixed width records of 40 bytes:
+ * <pre>
+ * 0  start time, ms    8  station   12 duration, s   16 route   18 trunk   20 pulses   24 charge
+ * 32 called number
+ * </pre>
+ * Station and called number are packed as digits, two to a byte, so a station holds up to 8 characters
+ * and a number 16, as many as the SMDR record has; * and # are kept, other characters read back as ?.
+ * <p/>
+ * Partitions are memory mapped and appended to in place, the record first and then the count, so a crash
+ * loses at most the record being written.  The mapping grows by doubling.  Each partition opened keeps an
+ * index of its records sorted by station, built from the station column when it is opened and extended as
+ * records arrive, so a query for one room reads only the records of that room.  At most
+ * ARCHIVE_OPEN_PARTITIONS (8) partitions stay mapped, the least recently used is closed.
+ * <p/>
+ * Thread safe.
+ */
+public class CallArchive {
+    private static final Logger log = LoggerFactory.getLogger(CallArchive.class);
+    private static final String SUFFIX = ".cdr";
+    private static final int MAGIC = 0x43445231;
+    private static final int HEADER = 64;
+    private static final int RECORD = 40;
+    private static final int INITIAL_RECORDS = 4096;
+    /* Records appended since the index was sorted that a query scans directly */
+    private static final int UNSORTED_TAIL = 256;
+    /* Calls read under the lock at a time by scan */
+    private static final int CHUNK = 1024;
+    private static final char[] DIGITS = "0123456789*#???".toCharArray();
+
+    private final File dir;
+    private final int openPartitions;
+    private final Map<Integer, Partition> partitions;
+    private long dayStart = Long.MAX_VALUE;
+    private long dayEnd = Long.MIN_VALUE;
+    private int dayKey;
+    private long appended;
+
+    public CallArchive(File dir, int openPartitions) {
+        this.dir = dir;
+        this.openPartitions = openPartitions;
+        this.partitions = new LinkedHashMap<Integer, Partition>(16, 0.75f, true);
+    }
+
+    public static CallArchive fromEnvironment() {
+        return new CallArchive(new File(Env.getString("ARCHIVE_DIR",
+                new File(System.getProperty("user.home"), "tel-archive").getPath())),
+                Env.getInt("ARCHIVE_OPEN_PARTITIONS", 8));
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return false if the record could not be written
+     */
+    public synchronized boolean append(CallRecord record) {
+        try {
+            Partition partition = partition(day(record.getStartTime()), true);
+            partition.append(record);
+            appended++;
+            return true;
+        } catch (IOException e) {
+            log.error("Could not archive " + record, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param station  the room, null for every station
+     * @param from     start of the window, inclusive, ms since the epoch
+     * @param to       end of the window, exclusive
+     * @param limit    most records to return
+     * @return the calls that started in the window, oldest first
+     */
+    public synchronized List<CallRecord> query(String station, long from, long to, int limit) throws IOException {
+        List<CallRecord> calls = new ArrayList<CallRecord>();
+        int key = station == null ? 0 : (int) pack(station.trim(), 8);
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(from);
+        truncate(day);
+        while (day.getTimeInMillis() < to && calls.size() < limit) {
+            Partition partition = partition(key(day), false);
+            if (partition != null) {
+                partition.read(station == null, key, from, to, 0, 0, calls, limit);
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        Collections.sort(calls, new Comparator<CallRecord>() {
+            @Override
+            public int compare(CallRecord a, CallRecord b) {
+                return a.getStartTime() < b.getStartTime() ? -1 : a.getStartTime() == b.getStartTime() ? 0 : 1;
+            }
+        });
+        return calls;
+    }
+
+    /**
+     * Hands the calls that started in the window to the callback a chunk at a time, in the order they were
+     * archived, day by day.  The archive is locked only while a chunk is read, not while the callback runs,
+     * so a slow reader does not hold up the links, and memory use does not depend on the size of the window.
+     *
+     * @param station     the room, null for every station
+     * @param minDuration shortest call wanted, in seconds
+     * @return the number of calls handed over
+     */
+    public long scan(String station, long from, long to, int minDuration, CallRecordCallback callback)
+            throws IOException {
+        int key = station == null ? 0 : (int) pack(station.trim(), 8);
+        List<CallRecord> chunk = new ArrayList<CallRecord>(CHUNK);
+        long scanned = 0;
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(from);
+        truncate(day);
+        while (day.getTimeInMillis() < to) {
+            int row = 0;
+            while (row >= 0) {
+                chunk.clear();
+                synchronized (this) {
+                    Partition partition = partition(key(day), false);
+                    row = partition == null ? -1
+                            : partition.read(station == null, key, from, to, minDuration, row, chunk, CHUNK);
+                }
+                for (CallRecord call : chunk) {
+                    callback.onCallRecord(call);
+                }
+                scanned += chunk.size();
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return scanned;
+    }
+
+    /**
+     * @return the calls of the night that starts at noon on the given day and ends at noon the next
+     */
+    public List<CallRecord> queryNight(String station, Date night, int limit) throws IOException {
+        Calendar noon = Calendar.getInstance();
+        noon.setTime(night);
+        truncate(noon);
+        noon.set(Calendar.HOUR_OF_DAY, 12);
+        long from = noon.getTimeInMillis();
+        noon.add(Calendar.DAY_OF_MONTH, 1);
+        return query(station, from, noon.getTimeInMillis(), limit);
+    }
+
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Forces the open partitions to disk and unmaps them.
+     */
+    public synchronized void close() {
+        for (Partition partition : partitions.values()) {
+            partition.close();
+        }
+        partitions.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "call archive " + dir + ", " + appended + " appended, " + partitions.size() + " partitions open";
+    }
+
+    /* yyyyMMdd of the local day the time falls in, computed once a day */
+    private int day(long time) {
+        if (time < dayStart || time >= dayEnd) {
+            Calendar day = Calendar.getInstance();
+            day.setTimeInMillis(time);
+            truncate(day);
+            dayKey = key(day);
+            dayStart = day.getTimeInMillis();
+            day.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = day.getTimeInMillis();
+        }
+        return dayKey;
+    }
+
+    private Partition partition(int day, boolean create) throws IOException {
+        Partition partition = partitions.get(day);
+        if (partition != null) {
+            return partition;
+        }
+        File file = new File(dir, day + SUFFIX);
+        if (!create && !file.exists()) {
+            return null;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        partition = new Partition(file);
+        partitions.put(day, partition);
+        if (partitions.size() > openPartitions) {
+            Iterator<Partition> eldest = partitions.values().iterator();
+            eldest.next().close();
+            eldest.remove();
+        }
+        return partition;
+    }
+
+    private static void truncate(Calendar day) {
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+    }
+
+    private static int key(Calendar day) {
+        return day.get(Calendar.YEAR) * 10000 + (day.get(Calendar.MONTH) + 1) * 100
+                + day.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /* The first digits of the text, a nibble each, padded with 0xF */
+    static long pack(String text, int digits) {
+        long packed = 0;
+        for (int i = 0; i < digits; i++) {
+            int nibble = 0xF;
+            if (i < text.length()) {
+                char c = text.charAt(i);
+                nibble = c >= '0' && c <= '9' ? c - '0' : c == '*' ? 0xA : c == '#' ? 0xB : 0xC;
+            }
+            packed = packed << 4 | nibble;
+        }
+        return packed;
+    }
+
+    static String unpack(long packed, int digits) {
+        StringBuilder text = new StringBuilder(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            int nibble = (int) (packed >>> (i * 4)) & 0xF;
+            if (nibble == 0xF) {
+                break;
+            }
+            text.append(DIGITS[nibble]);
+        }
+        return text.toString();
+    }
+
+    /* One day of calls and its station index */
+    private static final class Partition {
+        private final File file;
+        private MappedByteBuffer buffer;
+        private int capacity;
+        private int count;
+        /* station << 32 | row, sorted for the first indexed rows */
+        private long[] index = new long[0];
+        private int indexed;
+
+        Partition(File file) throws IOException {
+            this.file = file;
+            boolean exists = file.length() >= HEADER;
+            map(exists ? Math.max(INITIAL_RECORDS, (int) ((file.length() - HEADER) / RECORD)) : INITIAL_RECORDS);
+            if (!exists || buffer.getInt(0) != MAGIC) {
+                if (exists) {
+                    log.warn("{} is not a call archive, starting it again", file);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, RECORD);
+                buffer.putInt(8, 0);
+            }
+            count = Math.min(buffer.getInt(8), capacity);
+            sortIndex();
+        }
+
+        private void map(int records) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) records * RECORD);
+                capacity = records;
+            } finally {
+                raf.close();
+            }
+        }
+
+        void append(CallRecord record) throws IOException {
+            if (count == capacity) {
+                buffer.force();
+                map(capacity * 2);
+            }
+            int position = HEADER + count * RECORD;
+            int station = (int) pack(record.getStation(), 8);
+            buffer.putLong(position, record.getStartTime());
+            buffer.putInt(position + 8, station);
+            buffer.putInt(position + 12, record.getDuration());
+            buffer.putShort(position + 16, (short) record.getRoute());
+            buffer.putShort(position + 18, (short) record.getTrunk());
+            buffer.putInt(position + 20, record.getPulses());
+            buffer.putLong(position + 24, record.getCharge());
+            buffer.putLong(position + 32, pack(record.getCalledNumber(), 16));
+            buffer.putInt(8, ++count);
+            if (count - indexed > UNSORTED_TAIL) {
+                sortIndex();
+            }
+        }
+
+        /*
+         * Adds the matching calls from the row on until calls holds max, in row order.  Returns the row to
+         * carry on from, -1 when the partition is done.  Rows are a stable cursor, the index only grows.
+         */
+        int read(boolean all, int station, long from, long to, int minDuration, int row, List<CallRecord> calls,
+                 int max) {
+            if (all) {
+                for (; row < count; row++) {
+                    if (calls.size() >= max) {
+                        return row;
+                    }
+                    collect(row, from, to, minDuration, calls);
+                }
+                return -1;
+            }
+            long key = (station & 0xFFFFFFFFL) << 32;
+            if (row < indexed) {
+                int i = Arrays.binarySearch(index, 0, indexed, key | row);
+                for (i = i < 0 ? -i - 1 : i; i < indexed && index[i] >>> 32 == key >>> 32; i++) {
+                    if (calls.size() >= max) {
+                        return (int) index[i];
+                    }
+                    collect((int) index[i], from, to, minDuration, calls);
+                }
+                row = indexed;
+            }
+            for (; row < count; row++) {
+                if (buffer.getInt(HEADER + row * RECORD + 8) == station) {
+                    if (calls.size() >= max) {
+                        return row;
+                    }
+                    collect(row, from, to, minDuration, calls);
+                }
+            }
+            return -1;
+        }
+
+        private void collect(int row, long from, long to, int minDuration, List<CallRecord> calls) {
+            int position = HEADER + row * RECORD;
+            long start = buffer.getLong(position);
+            if (start < from || start >= to || buffer.getInt(position + 12) < minDuration) {
+                return;
+            }
+            calls.add(new CallRecord(unpack(buffer.getInt(position + 8) & 0xFFFFFFFFL, 8),
+                    buffer.getShort(position + 16), buffer.getShort(position + 18),
+                    unpack(buffer.getLong(position + 32), 16), start, buffer.getInt(position + 12),
+                    buffer.getInt(position + 20), buffer.getLong(position + 24)));
+        }
+
+        private void sortIndex() {
+            if (index.length < count) {
+                index = Arrays.copyOf(index, Math.max(count, index.length * 2));
+            }
+            for (int row = indexed; row < count; row++) {
+                index[row] = (buffer.getInt(HEADER + row * RECORD + 8) & 0xFFFFFFFFL) << 32 | row;
+            }
+            Arrays.sort(index, 0, count);
+            indexed = count;
+        }
+
+        void close() {
+            buffer.force();
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+
+import java.io.IOException;
+
+/**
+ * Receives the calls read from the {@link CallArchive} one at a time.
+ */
+public interface CallRecordCallback {
+    /**
+     * @throws IOException to stop the scan, when the calls cannot be written on
+     */
+    void onCallRecord(CallRecord record) throws IOException;
+}
@@ -0,0 +1,57 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Writes calls from the {@link CallArchive} as CSV for finance, one line per call under a header line:
+ * <pre>
+ * CALL_ID,STATION_NO,CALLED_NO,DATE_OF_CALL,CALL_DURATION,ROUTE,TRUNK,PULSES,CALL_CHARGE
+ * </pre>
+ * the keys the PMS receives the calls under.  PULSES and CALL_CHARGE are empty for calls the gateway did
+ * not rate.  Lines are written as the archive is scanned, see {@link CallArchive#scan}, so an export of
+ * any length runs in constant memory.
+ */
+public final class CallRecordExporter {
+    private static final String[] HEADER = {"CALL_ID", "STATION_NO", "CALLED_NO", "DATE_OF_CALL",
+            "CALL_DURATION", "ROUTE", "TRUNK", "PULSES", "CALL_CHARGE"};
+
+    private CallRecordExporter() {
+    }
+
+    /**
+     * @param station     the room, null for every station
+     * @param minDuration shortest call exported, in seconds
+     * @return the number of calls written
+     */
+    public static long export(CallArchive archive, String station, long from, long to, int minDuration,
+                              Appendable out) throws IOException {
+        final CSVPrinter printer = CSVFormat.DEFAULT.withHeader(HEADER).print(out);
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        long exported = archive.scan(station, from, to, minDuration, new CallRecordCallback() {
+            @Override
+            public void onCallRecord(CallRecord call) throws IOException {
+                printer.printRecord(call.getId(), call.getStation(), call.getCalledNumber(),
+                        dateFormat.format(new Date(call.getStartTime())), call.getDuration(), call.getRoute(),
+                        call.getTrunk(), call.isRated() ? call.getPulses() : "",
+                        call.isRated() ? BigDecimal.valueOf(call.getCharge(), 6).toPlainString() : "");
+            }
+        });
+        printer.flush();
+        return exported;
+    }
+
+    /**
+     * @param time yyyy-MM-dd HH:mm, or yyyy-MM-dd for midnight
+     */
+    public static Date parseTime(String time) throws ParseException {
+        return new SimpleDateFormat(time.trim().length() > 10 ? "yyyy-MM-dd HH:mm" : "yyyy-MM-dd").parse(time);
+    }
+}
@@ -0,0 +1,655 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.service.PMSRestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Store and forward for call records the PMS could not take.
+ * <p/>
+ * Records are appended to a log of segment files in one directory, each named after the sequence number
+ * of its first record and rolled over at segmentBytes.  A record is its length, sequence number, the
+ * call with its charge and a CRC32; a torn record at the tail is cut off on {@link #open()}.  Appends are plain writes,
+ * a sync thread forces the active segment every flushMillis when something was written, so a burst of
+ * appends costs one fsync.
+ * <p/>
+ * A drainer thread posts the backlog oldest first in batches.  After a batch is accepted the sequence
+ * number of its last record is written to the cursor file and segments wholly delivered are deleted.  A
+ * failed post is retried after a backoff that doubles from minBackoffMillis up to maxBackoffMillis, with
+ * some jitter so several gateways do not hit a recovering PMS at the same moment.  Delivery is at least
+ * once: a crash between a post and the cursor update posts the batch again, the PMS recognises the
+ * repeat by the CALL_ID of each call, see {@link CallRecord#getId()}.  Damage the drainer finds in a segment
+ * is skipped to the next one, the active segment is rolled first, and the records lost are logged.
+ * <p/>
+ * Thread safe.
+ */
+public class CallRecordOutbox {
+    private static final Logger log = LoggerFactory.getLogger(CallRecordOutbox.class);
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR = "cursor";
+    /* sequence number before the call, CRC after */
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 4096;
+    /* Time constant of the drain rate, in nanoseconds */
+    private static final double RATE_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Records read for one post and where the log stands after them.
+     */
+    private static final class Batch {
+        final List<CallRecord> records = new ArrayList<CallRecord>();
+        long lastSequence;
+        int segment;
+        long offset;
+        /* Sequence number of the last intact record read in the segment */
+        long lastRead;
+        /* The segment is damaged at the offset */
+        boolean damaged;
+    }
+
+    private final File dir;
+    private final PMSRestClient pmsRestClient;
+    private final long segmentBytes;
+    private final long flushMillis;
+    private final int batchSize;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random jitter = new Random();
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream(MAX_RECORD);
+    private final DataOutputStream out = new DataOutputStream(encoded);
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+    private final DataOutputStream bodyOut = new DataOutputStream(body);
+    private final CRC32 crc = new CRC32();
+    /* Oldest first, the last one is written to */
+    private final LinkedList<File> segments = new LinkedList<File>();
+    private FileChannel active;
+    private volatile boolean dirty = false;
+    /*
+     * Set by close() to stop the threads.  They are not interrupted, an interrupt during a read or force
+     * closes the segment channel under the outbox
+     */
+    private boolean closing;
+    private Thread syncer;
+    private Thread drainer;
+    /* Where the drainer goes on, index into segments and offset in it */
+    private int readSegment;
+    private long readOffset;
+    private long nextSequence = 1;
+    private volatile long delivered;
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private volatile double drainRate;
+    private long rateUpdated = System.nanoTime();
+
+    /**
+     * @param segmentBytes     size at which a new segment is started
+     * @param flushMillis      interval of the group commit
+     * @param batchSize        records per post
+     * @param minBackoffMillis wait after the first failed post
+     * @param maxBackoffMillis longest wait between posts while the PMS is down
+     */
+    public CallRecordOutbox(File dir, PMSRestClient pmsRestClient, long segmentBytes, long flushMillis,
+                            int batchSize, long minBackoffMillis, long maxBackoffMillis) {
+        this.dir = dir;
+        this.pmsRestClient = pmsRestClient;
+        this.segmentBytes = segmentBytes;
+        this.flushMillis = flushMillis;
+        this.batchSize = batchSize;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Configured from OUTBOX_DIR (tel-outbox in the user's home directory by default),
+     * OUTBOX_SEGMENT_BYTES (4 MB), OUTBOX_FLUSH_MILLIS (200), CALL_BATCH_SIZE (50), OUTBOX_BACKOFF_MIN
+     * (1000 ms) and OUTBOX_BACKOFF_MAX (60000 ms).
+     */
+    public static CallRecordOutbox fromEnvironment(PMSRestClient pmsRestClient) {
+        return new CallRecordOutbox(new File(Env.getString("OUTBOX_DIR",
+                new File(System.getProperty("user.home"), "tel-outbox").getPath())), pmsRestClient,
+                Env.getLong("OUTBOX_SEGMENT_BYTES", 4 << 20), Env.getLong("OUTBOX_FLUSH_MILLIS", 200),
+                Env.getInt("CALL_BATCH_SIZE", 50), Env.getLong("OUTBOX_BACKOFF_MIN", 1000),
+                Env.getLong("OUTBOX_BACKOFF_MAX", 60000));
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public synchronized boolean isOpen() {
+        return active != null;
+    }
+
+    /**
+     * Reads the log left by the last run and starts the sync and drainer threads.
+     */
+    public synchronized void open() throws IOException {
+        if (active != null) {
+            throw new IllegalStateException("Outbox " + dir + " is already open");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        delivered = readCursor();
+        File[] found = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(found);
+        segments.clear();
+        segments.addAll(Arrays.asList(found));
+        readSegment = 0;
+        readOffset = 0;
+        nextSequence = delivered + 1;
+        for (int i = 0; i < segments.size(); i++) {
+            recover(i, i == segments.size() - 1, readSegment < i || readSegment == i && readOffset > 0);
+        }
+        dropDelivered();
+        if (segments.isEmpty()) {
+            segments.add(segmentFile(nextSequence));
+        }
+        active = new RandomAccessFile(segments.getLast(), "rw").getChannel();
+        active.position(active.size());
+        closing = false;
+        if (getBacklog() > 0) {
+            log.info("Outbox {} has {} call records to deliver", dir, getBacklog());
+        }
+        syncer = daemon(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "outbox-sync");
+        drainer = daemon(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "outbox-drainer");
+    }
+
+    /**
+     * Adds records to the log for the drainer to post.
+     *
+     * @return false if the outbox is not open or the records could not be written
+     */
+    public synchronized boolean append(List<CallRecord> records) {
+        if (active == null) {
+            return false;
+        }
+        encoded.reset();
+        long sequence = nextSequence;
+        long start = 0;
+        try {
+            start = active.position();
+            for (CallRecord record : records) {
+                encode(sequence++, record);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(encoded.toByteArray());
+            while (buffer.hasRemaining()) {
+                active.write(buffer);
+            }
+        } catch (IOException e) {
+            log.error("Could not write " + records.size() + " call records to the outbox " + dir, e);
+            try {
+                /* Drop what made it to the file, the records are not in the log */
+                active.truncate(start);
+                active.position(start);
+            } catch (IOException ignored) {
+                log.warn("Outbox {} may hold a partial record at its tail", dir);
+            }
+            return false;
+        }
+        nextSequence = sequence;
+        appendedCount.addAndGet(records.size());
+        dirty = true;
+        try {
+            if (active.size() >= segmentBytes) {
+                roll();
+            }
+        } catch (IOException e) {
+            log.warn("Could not start a new outbox segment in " + dir, e);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Stops the threads and forces the log, what is not delivered is posted after the next {@link #open()}.
+     */
+    public void close() {
+        Thread[] threads;
+        synchronized (this) {
+            if (active == null) {
+                return;
+            }
+            threads = new Thread[]{syncer, drainer};
+            syncer = null;
+            drainer = null;
+            closing = true;
+            notifyAll();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                active.force(false);
+                active.close();
+            } catch (IOException e) {
+                log.warn("Could not close outbox segment in " + dir, e);
+            }
+            active = null;
+        }
+    }
+
+    /**
+     * @return records in the log not yet accepted by the PMS
+     */
+    public synchronized long getBacklog() {
+        return nextSequence - 1 - delivered;
+    }
+
+    /**
+     * @return records appended since the outbox was created
+     */
+    public long getAppended() {
+        return appendedCount.get();
+    }
+
+    /**
+     * @return records the PMS accepted from the outbox since it was created
+     */
+    public long getDelivered() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * @return posts that failed and will be retried
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return records delivered per second, averaged over about a minute
+     */
+    public double getDrainRate() {
+        return drainRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("outbox backlog %d, appended %d, delivered %d, retries %d, drain %.1f/s",
+                getBacklog(), getAppended(), getDelivered(), getRetries(), getDrainRate());
+    }
+
+    private void syncLoop() {
+        try {
+            while (pause(flushMillis)) {
+                if (dirty) {
+                    dirty = false;
+                    synchronized (this) {
+                        if (active != null) {
+                            active.force(false);
+                        }
+                    }
+                }
+            }
+            log.debug("Outbox sync for {} stopped", dir);
+        } catch (InterruptedException e) {
+            log.debug("Outbox sync for {} interrupted", dir);
+        } catch (IOException e) {
+            log.error("Could not force the outbox " + dir + " to disk, sync stopped", e);
+        }
+    }
+
+    private void drainLoop() {
+        long backoff = minBackoffMillis;
+        try {
+            while (true) {
+                Batch batch;
+                synchronized (this) {
+                    while (!closing && getBacklog() == 0) {
+                        wait(TimeUnit.SECONDS.toMillis(1));
+                        updateRate(0);
+                    }
+                    if (closing) {
+                        break;
+                    }
+                    batch = read();
+                }
+                if (batch.records.isEmpty()) {
+                    if (!pause(flushMillis)) {
+                        break;
+                    }
+                    continue;
+                }
+                if (post(batch.records)) {
+                    commit(batch);
+                    backoff = minBackoffMillis;
+                    continue;
+                }
+                retries.incrementAndGet();
+                long wait = backoff / 2 + (long) (jitter.nextDouble() * backoff / 2);
+                log.warn("PMS did not accept {} call records from the outbox, {} waiting, retry in {} ms",
+                        batch.records.size(), getBacklog(), wait);
+                if (!pause(wait)) {
+                    break;
+                }
+                backoff = Math.min(maxBackoffMillis, backoff * 2);
+            }
+            log.debug("Outbox drainer for {} stopped", dir);
+        } catch (InterruptedException e) {
+            log.debug("Outbox drainer for {} interrupted", dir);
+        }
+    }
+
+    /* Waits for the given time, returns false at once when the outbox is closing */
+    private synchronized boolean pause(long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long left = millis;
+        while (!closing && left > 0) {
+            wait(left);
+            left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+        return !closing;
+    }
+
+    private boolean post(List<CallRecord> records) {
+        try {
+            return pmsRestClient.postCallRecords(records);
+        } catch (RuntimeException e) {
+            log.error("Posting call records from the outbox failed", e);
+            return false;
+        }
+    }
+
+    /*
+     * Up to batchSize records from the read position on, without moving it.  Damage in a segment is
+     * skipped at once, the records behind it are lost
+     */
+    private Batch read() {
+        Batch batch = new Batch();
+        batch.segment = readSegment;
+        batch.offset = readOffset;
+        try {
+            while (batch.records.size() < batchSize && batch.segment < segments.size()) {
+                boolean last = batch.segment == segments.size() - 1;
+                FileChannel channel = last ? active : new RandomAccessFile(segments.get(batch.segment), "r")
+                        .getChannel();
+                batch.lastRead = firstSequence(segments.get(batch.segment)) - 1;
+                try {
+                    batch.offset = readRecords(channel, batch.offset, batch);
+                } finally {
+                    if (!last) {
+                        channel.close();
+                    }
+                }
+                if (batch.damaged) {
+                    if (!batch.records.isEmpty()) {
+                        /* Post what came before, the next read starts at the damage */
+                        break;
+                    }
+                    skipDamage(batch, last);
+                    continue;
+                }
+                if (last || batch.records.size() >= batchSize) {
+                    break;
+                }
+                batch.segment++;
+                batch.offset = 0;
+            }
+        } catch (IOException e) {
+            log.error("Could not read the outbox " + dir, e);
+        }
+        return batch;
+    }
+
+    /* Adds records from the channel until the batch is full or the segment ends or is damaged, returns the offset */
+    private long readRecords(FileChannel channel, long offset, Batch batch) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        long size = channel.size();
+        while (batch.records.size() < batchSize && offset + 4 <= size) {
+            length.clear();
+            channel.read(length, offset);
+            int recordLength = length.getInt(0);
+            if (recordLength < RECORD_HEADER + 4 || recordLength > MAX_RECORD || offset + 4 + recordLength > size) {
+                batch.damaged = true;
+                return offset;
+            }
+            ByteBuffer body = ByteBuffer.allocate(recordLength);
+            channel.read(body, offset + 4);
+            byte[] bytes = body.array();
+            crc.reset();
+            crc.update(bytes, 0, recordLength - 4);
+            if ((int) crc.getValue() != body.getInt(recordLength - 4)) {
+                batch.damaged = true;
+                return offset;
+            }
+            long sequence = body.getLong(0);
+            offset += 4 + recordLength;
+            batch.lastRead = sequence;
+            if (sequence > delivered) {
+                batch.records.add(decode(bytes));
+                batch.lastSequence = sequence;
+            }
+        }
+        if (offset < size && offset + 4 > size) {
+            batch.damaged = true;
+        }
+        return offset;
+    }
+
+    /*
+     * Moves the read position past the damage to the next segment, rolling the active one first so new
+     * records do not land behind the damage.  The records up to the first one of the next segment count
+     * as delivered.
+     */
+    private void skipDamage(Batch batch, boolean last) throws IOException {
+        File damaged = segments.get(batch.segment);
+        if (last) {
+            roll();
+        }
+        long resume = firstSequence(segments.get(batch.segment + 1));
+        log.warn("Outbox segment {} damaged at offset {}, {} call records lost", damaged, batch.offset,
+                Math.max(0, resume - 1 - Math.max(batch.lastRead, delivered)));
+        batch.damaged = false;
+        if (resume - 1 > delivered) {
+            try {
+                writeCursor(resume - 1);
+            } catch (IOException e) {
+                log.warn("Could not write the outbox cursor in " + dir, e);
+            }
+            delivered = resume - 1;
+        }
+        readSegment = batch.segment + 1;
+        readOffset = 0;
+        dropDelivered();
+        batch.segment = readSegment;
+        batch.offset = 0;
+    }
+
+    /* The batch was accepted, move on past it */
+    private synchronized void commit(Batch batch) {
+        try {
+            writeCursor(batch.lastSequence);
+        } catch (IOException e) {
+            log.warn("Could not write the outbox cursor in " + dir + ", records may be posted twice", e);
+        }
+        delivered = batch.lastSequence;
+        readSegment = batch.segment;
+        readOffset = batch.offset;
+        deliveredCount.addAndGet(batch.records.size());
+        updateRate(batch.records.size());
+        dropDelivered();
+    }
+
+    /* Deletes the segments before the read position, never the active one */
+    private void dropDelivered() {
+        while (readSegment > 0 && segments.size() > 1) {
+            File done = segments.removeFirst();
+            readSegment--;
+            if (!done.delete()) {
+                log.warn("Could not delete delivered outbox segment {}", done);
+            }
+        }
+    }
+
+    private void updateRate(int count) {
+        long now = System.nanoTime();
+        double elapsed = Math.max(1, now - rateUpdated);
+        double decay = Math.exp(-elapsed / RATE_WINDOW);
+        drainRate = drainRate * decay + count * TimeUnit.SECONDS.toNanos(1) / RATE_WINDOW;
+        rateUpdated = now;
+    }
+
+    /*
+     * Validates a segment left by the last run.  Moves the read position to the first record not delivered
+     * and the next sequence number past the last record, cuts a torn tail off the last segment.
+     */
+    private void recover(int index, boolean last, boolean positioned) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segments.get(index), last ? "rw" : "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long offset = 0;
+            long size = channel.size();
+            byte[] bytes = new byte[MAX_RECORD];
+            while (offset + 4 <= size) {
+                file.seek(offset);
+                int length = file.readInt();
+                if (length < RECORD_HEADER + 4 || length > MAX_RECORD || offset + 4 + length > size) {
+                    break;
+                }
+                file.readFully(bytes, 0, length);
+                crc.reset();
+                crc.update(bytes, 0, length - 4);
+                if ((int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(length - 4)) {
+                    break;
+                }
+                long sequence = ByteBuffer.wrap(bytes).getLong(0);
+                if (sequence > delivered && !positioned) {
+                    readSegment = index;
+                    readOffset = offset;
+                    positioned = true;
+                }
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                offset += 4 + length;
+            }
+            if (offset < size) {
+                log.warn("Outbox segment {} damaged at offset {}, {} bytes dropped", segments.get(index), offset,
+                        size - offset);
+                if (last) {
+                    channel.truncate(offset);
+                }
+            }
+            if (!positioned) {
+                /* Everything so far was delivered, go on after it */
+                readSegment = last ? index : index + 1;
+                readOffset = last ? offset : 0;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        active.close();
+        File next = segmentFile(nextSequence);
+        segments.add(next);
+        active = new RandomAccessFile(next, "rw").getChannel();
+        log.debug("Outbox {} started segment {}", dir, next.getName());
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(dir, String.format("%016d%s", firstSequence, SEGMENT_SUFFIX));
+    }
+
+    private static long firstSequence(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void encode(long sequence, CallRecord record) throws IOException {
+        body.reset();
+        bodyOut.writeLong(sequence);
+        bodyOut.writeUTF(record.getStation());
+        bodyOut.writeInt(record.getRoute());
+        bodyOut.writeInt(record.getTrunk());
+        bodyOut.writeUTF(record.getCalledNumber());
+        bodyOut.writeLong(record.getStartTime());
+        bodyOut.writeInt(record.getDuration());
+        bodyOut.writeInt(record.getPulses());
+        bodyOut.writeLong(record.getCharge());
+        bodyOut.flush();
+        byte[] bytes = body.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length + 4);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    private static CallRecord decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.readLong();
+        CallRecord record = new CallRecord(in.readUTF(), in.readInt(), in.readInt(), in.readUTF(), in.readLong(),
+                in.readInt());
+        /* Records appended before calls were rated end at the duration */
+        return in.available() >= 12 ? record.withCharge(in.readInt(), in.readLong()) : record;
+    }
+
+    private long readCursor() throws IOException {
+        File cursor = new File(dir, CURSOR);
+        if (!cursor.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(cursor.toPath())));
+        return in.readLong();
+    }
+
+    private void writeCursor(long sequence) throws IOException {
+        File next = new File(dir, CURSOR + ".next");
+        Files.write(next.toPath(), ByteBuffer.allocate(8).putLong(sequence).array());
+        Files.move(next.toPath(), new File(dir, CURSOR).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,87 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+
+import java.util.Calendar;
+
+/**
+ * Reads SMDR records at fixed offsets:
+ * <pre>
+ * 0    4  6   9   12               28 30 32 34   39
+ * SSSS__RRRTTTNNNNNNNNNNNNNNNNHHMMSSDDDDD
+ * </pre>
+ * Station, route, trunk, called number, start time and duration as H MM SS.  The record only carries
+ * the time of day, a start time later than now is taken to be yesterday.
+ * <p/>
+ * Numbers are read straight from the characters and the day boundary is computed once a day, so parsing
+ * allocates only the record and its two strings.  Not thread safe, each protocol layer owns one.
+ */
+public class CallRecordParser {
+    public static final int RECORD_LENGTH = 39;
+    private static final long DAY = 24l * 60 * 60 * 1000;
+
+    private long midnight = 0;
+
+    /**
+     * @return the record, or null if the text does not hold one
+     */
+    public CallRecord parse(String message) {
+        return parse(message, System.currentTimeMillis());
+    }
+
+    CallRecord parse(String message, long now) {
+        if (message == null || message.length() < RECORD_LENGTH) {
+            return null;
+        }
+        int route = number(message, 6, 9);
+        int trunk = number(message, 9, 12);
+        int hour = number(message, 28, 30);
+        int minute = number(message, 30, 32);
+        int second = number(message, 32, 34);
+        int hours = number(message, 34, 35);
+        int minutes = number(message, 35, 37);
+        int seconds = number(message, 37, 39);
+        if (route < 0 || trunk < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+                || second > 59 || hours < 0 || minutes < 0 || seconds < 0) {
+            return null;
+        }
+        String station = message.substring(0, 4).trim();
+        if (station.isEmpty()) {
+            return null;
+        }
+        long startTime = midnight(now) + ((hour * 60l + minute) * 60 + second) * 1000;
+        if (startTime > now) {
+            startTime -= DAY;
+        }
+        return new CallRecord(station, route, trunk, message.substring(12, 28).trim(), startTime,
+                (hours * 60 + minutes) * 60 + seconds);
+    }
+
+    /* Local midnight at the start of today, recomputed only when the day changes */
+    private long midnight(long now) {
+        if (now < midnight || now >= midnight + DAY) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(now);
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            midnight = cal.getTimeInMillis();
+        }
+        return midnight;
+    }
+
+    /* Digits between from and to, spaces allowed as padding.  -1 if anything else is there */
+    private static int number(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else if (c != ' ') {
+                return -1;
+            }
+        }
+        return value;
+    }
+}
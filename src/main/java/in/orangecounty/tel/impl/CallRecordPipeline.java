@@ -0,0 +1,354 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.service.PMSRestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues call records from the protocol layers and posts them to the PMS in batches.
+ * <p/>
+ * A batch goes out when it holds CALL_BATCH_SIZE records (50 by default) or CALL_BATCH_MILLIS (2000 by
+ * default) after its first record arrived, whichever comes first, as one request from a single poster
+ * thread.  The queue holds CALL_QUEUE_CAPACITY records (10000 by default); {@link #offer} never blocks the
+ * link, when the queue is full the record is dropped and counted.
+ * <p/>
+ * With a {@link CallRecordOutbox} nothing is dropped: a batch the PMS does not accept, and a record that
+ * finds the queue full, go to the outbox to be retried.  While the outbox has a backlog new batches join
+ * it rather than being posted, so calls reach the PMS in order and a PMS that is down is not asked twice.
+ * The pipeline opens the outbox on {@link #start()} and closes it on {@link #stop()}.
+ * <p/>
+ * With a {@link CallArchive} every record offered is also kept there, whether or not the PMS takes it, and
+ * an {@link ExtensionDirectory} learns the last call of each room.  Both happen on an archiver thread fed
+ * by a second queue of the same capacity, so the archive lock and the fsync when a partition grows never
+ * hold up the link; a record that finds that queue full is not archived and counted.
+ */
+public class CallRecordPipeline {
+    private static final Logger log = LoggerFactory.getLogger(CallRecordPipeline.class);
+    /* Queued after the last record to stop the archiver */
+    private static final CallRecord STOP_ARCHIVER = new CallRecord("", 0, 0, "", 0, 0);
+
+    private final PMSRestClient pmsRestClient;
+    private final BlockingQueue<CallRecord> queue;
+    private final BlockingQueue<CallRecord> archiveQueue;
+    private final int batchSize;
+    private final long batchMillis;
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong unarchived = new AtomicLong();
+    private volatile CallRecordOutbox outbox;
+    private volatile CallArchive archive;
+    private volatile ExtensionDirectory directory;
+    private Thread poster;
+    private Thread archiver;
+    /* Cleared before the poster is interrupted, in case the PMS client swallows the interrupt */
+    private volatile boolean running;
+
+    public CallRecordPipeline(PMSRestClient pmsRestClient, int capacity, int batchSize, long batchMillis) {
+        this.pmsRestClient = pmsRestClient;
+        this.queue = new ArrayBlockingQueue<CallRecord>(capacity);
+        this.archiveQueue = new ArrayBlockingQueue<CallRecord>(capacity);
+        this.batchSize = batchSize;
+        this.batchMillis = batchMillis;
+    }
+
+    /**
+     * With an outbox unless OUTBOX_ENABLED is false and an archive unless ARCHIVE_ENABLED is false.
+     */
+    public static CallRecordPipeline fromEnvironment(PMSRestClient pmsRestClient) {
+        CallRecordPipeline pipeline = new CallRecordPipeline(pmsRestClient, Env.getInt("CALL_QUEUE_CAPACITY", 10000),
+                Env.getInt("CALL_BATCH_SIZE", 50), Env.getLong("CALL_BATCH_MILLIS", 2000));
+        if (Boolean.parseBoolean(Env.getString("OUTBOX_ENABLED", "true"))) {
+            pipeline.setOutbox(CallRecordOutbox.fromEnvironment(pmsRestClient));
+        }
+        if (Boolean.parseBoolean(Env.getString("ARCHIVE_ENABLED", "true"))) {
+            pipeline.setArchive(CallArchive.fromEnvironment());
+        }
+        return pipeline;
+    }
+
+    /**
+     * Must be set before {@link #start()}.
+     */
+    public void setOutbox(CallRecordOutbox outbox) {
+        this.outbox = outbox;
+    }
+
+    public CallRecordOutbox getOutbox() {
+        return outbox;
+    }
+
+    public void setArchive(CallArchive archive) {
+        this.archive = archive;
+    }
+
+    public CallArchive getArchive() {
+        return archive;
+    }
+
+    public void setDirectory(ExtensionDirectory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return false if the queue was full and the record dropped
+     */
+    public boolean offer(CallRecord record) {
+        if ((archive != null || directory != null) && !archiveQueue.offer(record)
+                && unarchived.incrementAndGet() % 100 == 1) {
+            log.warn("Archive queue full, {} call records not archived so far", unarchived.get());
+        }
+        if (queue.offer(record)) {
+            return true;
+        }
+        if (defer(Collections.singletonList(record))) {
+            return true;
+        }
+        if (dropped.incrementAndGet() % 100 == 1) {
+            log.warn("Call record queue full, {} records dropped so far", dropped.get());
+        }
+        return false;
+    }
+
+    public synchronized void start() {
+        if (poster != null) {
+            return;
+        }
+        if (outbox != null && !outbox.isOpen()) {
+            try {
+                outbox.open();
+            } catch (IOException e) {
+                log.error("Could not open the outbox " + outbox.getDir()
+                        + ", call records the PMS does not accept will be lost", e);
+            }
+        }
+        running = true;
+        poster = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                postLoop();
+            }
+        }, "call-record-poster");
+        poster.setDaemon(true);
+        poster.start();
+        if (archive != null || directory != null) {
+            archiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    archiveLoop();
+                }
+            }, "call-record-archiver");
+            archiver.setDaemon(true);
+            archiver.start();
+        }
+    }
+
+    /**
+     * Stops the poster after it has handed what is already queued to the outbox, or without one sent it, then
+     * closes the outbox and the archive, once the archiver has written what was queued for it.  Records the
+     * poster could not finish with in 10 seconds go to the outbox from here.
+     */
+    public synchronized void stop() {
+        if (poster != null) {
+            running = false;
+            poster.interrupt();
+            try {
+                poster.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (poster.isAlive()) {
+                log.warn("Call record poster still busy after 10 s, leaving it");
+            }
+            poster = null;
+        }
+        List<CallRecord> left = new ArrayList<CallRecord>();
+        queue.drainTo(left);
+        if (!left.isEmpty() && !defer(left)) {
+            failed.addAndGet(left.size());
+            log.warn("{} call records still queued on stop were lost", left.size());
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+        if (archiver != null) {
+            try {
+                if (archiveQueue.offer(STOP_ARCHIVER, 10, TimeUnit.SECONDS)) {
+                    archiver.join(TimeUnit.SECONDS.toMillis(10));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (archiver.isAlive()) {
+                log.warn("Call record archiver still busy after 10 s, leaving it");
+            }
+            archiver = null;
+        }
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public long getPosted() {
+        return posted.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return records lost because the PMS did not accept them and there was no outbox to keep them
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return records handed to the outbox instead of being posted
+     */
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    /**
+     * @return records left out of the archive and the directory because the archiver fell behind
+     */
+    public long getUnarchived() {
+        return unarchived.get();
+    }
+
+    @Override
+    public String toString() {
+        CallRecordOutbox box = outbox;
+        CallArchive store = archive;
+        return "call records queued " + getQueued() + ", posted " + getPosted() + ", deferred " + getDeferred()
+                + ", dropped " + getDropped() + ", failed " + getFailed() + ", not archived " + getUnarchived()
+                + (box == null ? "" : "\n  " + box)
+                + (store == null ? "" : "\n  " + store);
+    }
+
+    private void postLoop() {
+        List<CallRecord> batch = new ArrayList<CallRecord>(batchSize);
+        try {
+            while (running) {
+                CallRecord first = queue.take();
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || wait <= 0) {
+                        break;
+                    }
+                    CallRecord next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                post(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            /* Stopping */
+        } finally {
+            /* Whether the interrupt came in a wait or during a post, nothing queued may be lost */
+            Thread.interrupted();
+            queue.drainTo(batch);
+            if (!batch.isEmpty() && !defer(batch)) {
+                for (int from = 0; from < batch.size(); from += batchSize) {
+                    post(batch.subList(from, Math.min(batch.size(), from + batchSize)));
+                }
+            }
+            log.debug("Call record poster stopped");
+        }
+    }
+
+    private void archiveLoop() {
+        List<CallRecord> calls = new ArrayList<CallRecord>(batchSize);
+        try {
+            boolean stopping = false;
+            while (!stopping) {
+                calls.add(archiveQueue.take());
+                archiveQueue.drainTo(calls);
+                for (CallRecord call : calls) {
+                    if (call == STOP_ARCHIVER) {
+                        stopping = true;
+                    } else {
+                        keep(call);
+                    }
+                }
+                calls.clear();
+            }
+        } catch (InterruptedException e) {
+            log.warn("Call record archiver interrupted, {} call records not archived", archiveQueue.size());
+        }
+        log.debug("Call record archiver stopped");
+    }
+
+    private void keep(CallRecord record) {
+        CallArchive store = archive;
+        ExtensionDirectory rooms = directory;
+        try {
+            if (store != null) {
+                store.append(record);
+            }
+            if (rooms != null) {
+                rooms.onCall(record);
+            }
+        } catch (RuntimeException e) {
+            log.error("Could not archive " + record, e);
+        }
+    }
+
+    private void post(List<CallRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        CallRecordOutbox box = outbox;
+        if (box != null && box.getBacklog() > 0 && defer(batch)) {
+            return;
+        }
+        try {
+            if (pmsRestClient.postCallRecords(batch)) {
+                posted.addAndGet(batch.size());
+                log.debug("Posted {} call records", batch.size());
+                return;
+            }
+        } catch (RuntimeException e) {
+            log.error("Posting call records failed", e);
+        }
+        if (defer(batch)) {
+            log.info("PMS did not accept {} call records, kept in the outbox", batch.size());
+            return;
+        }
+        failed.addAndGet(batch.size());
+        log.warn("PMS did not accept {} call records", batch.size());
+    }
+
+    /* True if the records are safe in the outbox */
+    private boolean defer(List<CallRecord> records) {
+        CallRecordOutbox box = outbox;
+        if (box == null || !box.append(records)) {
+            return false;
+        }
+        deferred.addAndGet(records.size());
+        return true;
+    }
+}
@@ -1,20 +1,44 @@
 package in.orangecounty.tel.impl;
 
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
 import in.orangecounty.tel.ProtocolLayerListener;
 import in.orangecounty.tel.SerialLayer;
 import in.orangecounty.tel.DataLayer;
-import org.apache.commons.lang.ArrayUtils;
+import in.orangecounty.tel.metrics.Counter;
+import in.orangecounty.tel.metrics.Gauge;
+import in.orangecounty.tel.metrics.Histogram;
+import in.orangecounty.tel.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The DataLayer uses the SerailImpl as the physical layer to send and receive Messages.
  * The DataLayer is the 2nd layer.  It takes care of error correction using CRC and sends the necessary
  * Positive Acknowledgement (ACK) or Negative Acknowledgement(NAK)
  * <p/>
+ * The link is an explicit {@link LinkState} machine.  Received frames, timer expiries and send requests
+ * are all queued as events and handled one at a time by a single event loop, which is the only code that
+ * reads or writes the link state.  Received frames travel from the serial thread to the loop through a
+ * {@link ReceiveRing} so receiving does not allocate.
+ * <p/>
+ * Queued commands wait in the {@link OutboundScheduler}, one lane per {@link Priority}, so check-ins
+ * overtake a bulk sync without starving it, and a name or restriction still waiting is replaced by a
+ * later one for the same extension.
+ * <p/>
+ * With an {@link OutboundJournal} set, every queued command except the status enquiry is journaled before
+ * it is sent and completed when the PBX acknowledges it.  Commands left in the journal by a crash or a
+ * stop are sent again after the next {@link #start()}.
+ * <p/>
+ * The link counts NAKs, select retries, ENQ polls, aborted sessions and frames each way, and records the
+ * time from a frame's first transmission to its ACK and from queueing a command to its ACK, in
+ * microseconds, see {@link #setMetrics}.
+ * <p/>
  * Created by jamsheer on 3/6/15.
  */
 public class DataLayerImpl implements DataLayer {
@@ -28,17 +52,118 @@ public class DataLayerImpl implements DataLayer {
     private static final byte EOT = 4;
     private static final byte DLE = 16;
     private static final byte ETX = 3;
-    private ProtocolLayerListener appLayer;
-    private Queue<String> buffer = new ConcurrentLinkedDeque<String>();
-    private String messageToSend = null;
-    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
+    private static final byte[] INIT_BYTES = INIT.getBytes();
+    private static final byte[] ACK_BYTES = {ACK};
+    private static final byte[] NAK_BYTES = {NAK};
+    private static final byte[] EOT_BYTES = {EOT};
+    private static final byte[] ENQ_BYTES = {ENQ};
+    private static final byte[] DLE_BUSY_BYTES = {DLE, '<'};
+    /* Timer 1-1: the select sequence is sent up to 16 times, one second apart */
+    private static final int SELECT_ATTEMPTS = 16;
+    private static final long SELECT_INTERVAL = 1000l;
+    /* Unanswered frames are polled with ENQ up to 32 times, one second apart */
+    private static final int ENQ_POLLS = 32;
+    private static final long ENQ_INTERVAL = 1000l;
+    private static final int NAK_RETRIES = 4;
+    /* Timer 2-1: the PBX has 35 seconds to send its next frame or EOT */
+    private static final long RECEIVE_TIMEOUT = 35000l;
+    /* After a failed session the queued messages are retried this much later */
+    private static final long RETRY_DELAY = 5000l;
+    /* Events handled per run of the loop before it yields its thread */
+    private static final int EVENT_BATCH = 64;
+
+    public enum LinkState {
+        /* Nothing in progress */
+        IDLE,
+        /* INIT sent, waiting for the PBX to ACK it (Phase One) */
+        SELECTING,
+        /* Frame sent, waiting for the PBX to ACK it (Phase Two) */
+        SENDING,
+        /* PBX selected us and is sending frames */
+        RECEIVING
+    }
 
-    ScheduledFuture initSentFuture;
-    ScheduledFuture messageSentFuture;
-    ScheduledFuture receivingFuture;
-    private int messageCounter = 0;
+    private enum TimerKind {
+        SELECT, ENQ_POLL, RECEIVE_TIMEOUT, RETRY
+    }
+
+    private enum EventType {
+        SEND, TIMER
+    }
 
+    private static final class LinkEvent {
+        final EventType type;
+        final PbxCommand command;
+        final Priority priority;
+        final long generation;
+
+        LinkEvent(EventType type, PbxCommand command, Priority priority, long generation) {
+            this.type = type;
+            this.command = command;
+            this.priority = priority;
+            this.generation = generation;
+        }
+    }
+
+    private ProtocolLayerListener appLayer;
     SerialLayer serialLayer;
+    private int maxFramesPerSession = Env.getInt("MAX_FRAMES_PER_SESSION", 8);
+
+    /* Handed between threads */
+    private final ReceiveRing receivedFrames = new ReceiveRing(8192);
+    private final Queue<LinkEvent> events = new ConcurrentLinkedQueue<LinkEvent>();
+    private final AtomicBoolean loopScheduled = new AtomicBoolean(false);
+    private final Runnable loop = new Runnable() {
+        @Override
+        public void run() {
+            runLoop();
+        }
+    };
+    private volatile boolean started = false;
+    private Executor executor;
+    private HashedWheelTimer timer;
+    private boolean ownsExecutor = false;
+    private OutboundJournal journal;
+    private volatile List<OutboundJournal.Entry> replay;
+    /* The link has one timer at a time, re-armed in place */
+    private final HashedWheelTimer.Timeout linkTimer = new HashedWheelTimer.Timeout() {
+        @Override
+        protected void expired(long generation) {
+            post(new LinkEvent(EventType.TIMER, null, null, generation));
+        }
+    };
+
+    /* Owned by the event loop */
+    private volatile LinkState state = LinkState.IDLE;
+    private final OutboundScheduler buffer = new OutboundScheduler();
+    private final byte[] frame = new byte[FrameDecoder.MAX_FRAME_LENGTH];
+    private final FrameEncoder encoder = new FrameEncoder();
+    private PbxCommand messageToSend = null;
+    private byte[] lastReply = null;
+    private int attempts = 0;
+    private int messageCounter = 0;
+    private long timerGeneration = 0;
+    private TimerKind timerKind;
+    private int sessionFrames = 0;
+    private long sessionStarted = 0;
+    private volatile long totalFramesSent = 0;
+    private volatile long totalSessionNanos = 0;
+    private long frameSent = 0;
+
+    private Counter framesSent;
+    private Counter framesReceived;
+    private Counter naksReceived;
+    private Counter naksSent;
+    private Counter selectRetries;
+    private Counter sessionsAborted;
+    private Counter enqPolls;
+    private Counter busy;
+    private Histogram ackLatency;
+    private Histogram commandLatency;
+
+    public DataLayerImpl() {
+        setMetrics(new MetricsRegistry(), "link");
+    }
 
     public void setSerialLayer(SerialLayer serialLayer) {
         this.serialLayer = serialLayer;
@@ -48,212 +173,633 @@ public class DataLayerImpl implements DataLayer {
         this.appLayer = appLayer;
     }
 
+    /**
+     * Executor that runs the event loop.  It may be shared with other links, the loop never runs on more
+     * than one of its threads at a time.  Must be set before {@link #start()}.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Timer for the protocol timeouts, {@link HashedWheelTimer#shared()} unless set before
+     * {@link #start()}.
+     */
+    public void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Journal for the outbound queue.  Must be set before {@link #start()}, which opens it.
+     */
+    public void setJournal(OutboundJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Registers the link's counters, latencies and queue depths under the prefix, link./dev/ttyS0 for
+     * example.  Until it is called they go to a registry of their own.
+     */
+    public void setMetrics(MetricsRegistry registry, String prefix) {
+        framesSent = registry.counter(prefix + ".frames.sent");
+        framesReceived = registry.counter(prefix + ".frames.received");
+        naksReceived = registry.counter(prefix + ".naks.received");
+        naksSent = registry.counter(prefix + ".naks.sent");
+        selectRetries = registry.counter(prefix + ".select.retries");
+        sessionsAborted = registry.counter(prefix + ".sessions.aborted");
+        enqPolls = registry.counter(prefix + ".enq.polls");
+        busy = registry.counter(prefix + ".busy");
+        ackLatency = registry.histogram(prefix + ".ack.latency");
+        commandLatency = registry.histogram(prefix + ".command.latency");
+        for (final Priority priority : Priority.values()) {
+            registry.gauge(prefix + ".queue." + priority.name().toLowerCase(), new Gauge() {
+                @Override
+                public long getValue() {
+                    return buffer.getStats(priority).getDepth();
+                }
+            });
+        }
+        registry.gauge(prefix + ".state", new Gauge() {
+            @Override
+            public long getValue() {
+                return state.ordinal();
+            }
+        });
+    }
+
+    /**
+     * Number of queued messages sent back to back in one link session before the EOT.  1 gives the
+     * original behaviour of a full select sequence per message.
+     */
+    public void setMaxFramesPerSession(int maxFramesPerSession) {
+        if (maxFramesPerSession < 1) {
+            throw new IllegalArgumentException("maxFramesPerSession must be at least 1");
+        }
+        this.maxFramesPerSession = maxFramesPerSession;
+    }
+
+    public int getMaxFramesPerSession() {
+        return maxFramesPerSession;
+    }
+
+    /**
+     * Messages acknowledged by the PBX per second of link session time, since the layer was created.
+     */
+    public double getMessagesPerSecond() {
+        long nanos = totalSessionNanos;
+        return nanos == 0 ? 0 : totalFramesSent * 1e9 / nanos;
+    }
+
+    public LinkState getState() {
+        return state;
+    }
+
+    /**
+     * Depth and wait time of a lane of the outbound queue.
+     */
+    public OutboundScheduler.LaneStats getQueueStats(Priority priority) {
+        return buffer.getStats(priority);
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor();
+            ownsExecutor = true;
+        }
+        if (timer == null) {
+            timer = HashedWheelTimer.shared();
+        }
+        if (journal != null) {
+            try {
+                replay = journal.open();
+            } catch (IOException e) {
+                log.error("Could not open journal " + journal.getFile()
+                        + ", queued commands will not survive a restart", e);
+            }
+        }
+        /* Whatever the link was doing when it was stopped starts over, timers still pending are stale */
+        state = LinkState.IDLE;
+        messageToSend = null;
+        lastReply = null;
+        attempts = 0;
+        messageCounter = 0;
+        sessionFrames = 0;
+        sessionStarted = 0;
+        timerGeneration++;
+        started = true;
+        /* Anything queued before start is processed now */
+        schedule();
+    }
+
+    public synchronized void stop() {
+        started = false;
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdownNow();
+            executor = null;
+            ownsExecutor = false;
+        }
+        if (timer != null) {
+            timer.cancel(linkTimer);
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
     public void sendMessage(String message){
-        log.debug("Send Message called with {}", message);
-        buffer.add(message);
-        sendIfClear();
+        sendCommand(PbxCommand.raw(message));
     }
 
-    private void sendIfClear(){
-        log.debug("Send if Clear called.  Phase1 {}, Phase2 {}, Receiving {}", isPhaseOne(), isPhaseTwo(), isReceiving());
-        if(!isPhaseOne()&& !isPhaseTwo() && !isReceiving()){
-            sendInit();
-            enterPhaseOne();
+    @Override
+    public void sendCommand(PbxCommand command) {
+        sendCommand(command, Priority.INTERACTIVE);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the command is too long for a frame, it is not queued
+     */
+    @Override
+    public void sendCommand(PbxCommand command, Priority priority) {
+        if (!FrameEncoder.fits(command)) {
+            throw new IllegalArgumentException("Command " + command + " is longer than a frame holds");
         }
+        log.debug("Send Message called with {} in lane {}", command, priority);
+        post(new LinkEvent(EventType.SEND, command, priority, 0));
     }
 
     @Override
     public void onMessage(final byte[] message) {
-        log.debug("Received message {} converted it to {}", message, new String(message));
-        log.debug("Checking message {} with {}", message, INIT.getBytes());
-        if (Arrays.equals(message, INIT.getBytes())) {
-            if(isPhaseOne()){
-                exitPhaseOne();
-                return;
-            }
-            sendACK();
-            enterReceivingPhase();
-            /* Start Timer 2-1 (35 Seconds) */
-        } else if ((message[0] == STX) && (message[message.length - 2] == ETX)) {
-            log.debug("Received a  message ");
-            /*Check BCC and Send ACK/NAK and reset the receiving phase */
-            byte[] payload = Arrays.copyOfRange(message, 1, message.length - 1);
-            byte bcc = getBCC(payload);
-            log.debug("Message BCC {} | Calculated BCC {}", message[message.length - 1], bcc);
-            if (message[message.length - 1] == bcc) {
-                log.info("Receive Message : {}", new String(payload));
-                appLayer.onMessage(new String(Arrays.copyOfRange(message, 1, message.length - 2)));
-                exitReceivingPhase();
-                sendACK();
-                enterReceivingPhase();
-            } else {
-                sendNAK();
+        onMessage(message, 0, message.length);
+    }
+
+    /**
+     * Called on the serial thread, which must be the only caller.  The frame is copied into the receive
+     * ring and handled by the loop.
+     */
+    @Override
+    public void onMessage(final byte[] frame, final int offset, final int length) {
+        if (!receivedFrames.offerFrame(frame, offset, length)) {
+            /* The PBX will poll with ENQ or time out and resend */
+            log.warn("Receive ring full, dropping a frame of {} bytes", length);
+            return;
+        }
+        schedule();
+    }
+
+    private void post(LinkEvent event) {
+        events.add(event);
+        schedule();
+    }
+
+    private void schedule() {
+        Executor loopExecutor = executor;
+        if (started && loopExecutor != null && loopScheduled.compareAndSet(false, true)) {
+            try {
+                loopExecutor.execute(loop);
+            } catch (RejectedExecutionException e) {
+                loopScheduled.set(false);
+                log.warn("Event loop rejected, link stopped?", e);
             }
-        } else if (Arrays.equals(message, new byte[]{EOT})) {
-            /*//stop Timer 2-2 (32 Seconds)*/
-            exitReceivingPhase();
-            sendIfClear();
-        } else if (Arrays.equals(message, new byte[]{ACK})) {
-            if (isPhaseOne()) {
-                byte[] msg = parseMessage(buffer.peek());
-                /*//Stop Timer 1-1*/
-                exitPhaseOne();
-                sendMessage(msg);
-                enterPhaseTwo();
-                /*//Close Future, Schedule Message change Phase = 2*/
-            } else if (isPhaseTwo()) {
-                /*//Close Future, Send EOT change Phase = 0*/
-                exitPhaseTwo();
-                messageCounter = 0;
-                String msg = buffer.poll();
-                log.debug("Receivd Ack and removing Message : {} from buffer", msg);
-                sendEOT();
-                sendIfClear();
-            } else {
-                log.error("Received {}. Phase1 {}, Phase2 {}, Receiving {}", message, isPhaseOne(), isPhaseTwo(), isReceiving());
+        }
+    }
 
+    /* Package-private so the benchmarks can drive the loop on their own thread */
+    void runLoop() {
+        int handled = 0;
+        try {
+            List<OutboundJournal.Entry> entries = replay;
+            if (entries != null) {
+                replay = null;
+                replay(entries);
             }
-        } else if (Arrays.equals(message, new byte[]{NAK})) {
-            if (isPhaseTwo()) {
-                if (messageCounter < 4) {
-                    byte[] msg = parseMessage(messageToSend);
-                    exitPhaseTwo();
-                    sendMessage(msg);
-                    enterPhaseTwo();
-                } else {
-                    exitPhaseTwo();
-                    messageCounter = 0;
-                    sendEOT();
+            while (handled < EVENT_BATCH) {
+                int length = receivedFrames.pollFrame(frame);
+                if (length >= 0) {
+                    onFrame(frame, length);
+                    handled++;
+                    continue;
                 }
+                LinkEvent event = events.poll();
+                if (event == null) {
+                    break;
+                }
+                onEvent(event);
+                handled++;
             }
-        } else if (Arrays.equals(message, new byte[]{DLE, '<'})) {
-            /*//Stop Timer 1-1*/
-            exitPhaseOne();
-            sendEOT();
-        } else {
-            log.debug("Received : {}", new String(message));
+        } catch (RuntimeException e) {
+            log.error("Exception in link event loop", e);
+        } finally {
+            loopScheduled.set(false);
+        }
+        if (receivedFrames.available() > 0 || !events.isEmpty()) {
+            schedule();
         }
+    }
 
+    private void onEvent(LinkEvent event) {
+        switch (event.type) {
+            case SEND:
+                completeInJournal(buffer.add(event.command, event.priority,
+                        journal(event.command, event.priority)), event.command);
+                sendIfClear();
+                break;
+            case TIMER:
+                if (event.generation == timerGeneration) {
+                    onTimer(timerKind);
+                }
+                break;
+        }
     }
 
-    private void enterReceivingPhase(){
-        receivingFuture = scheduler.schedule(new Callable() {
-            @Override
-            public Object call() throws Exception {
-                exitReceivingPhase();
-                return null;
+    /*
+     * The journal holds every journaled command left in memory by a stop, in order, so those are replaced by
+     * its entries.  Commands that were never journaled, because the append failed or came after the stop
+     * closed the journal, are only in memory and queue again behind the replayed ones.
+     */
+    private void replay(List<OutboundJournal.Entry> entries) {
+        List<OutboundScheduler.Entry> unjournaled = new ArrayList<OutboundScheduler.Entry>();
+        for (OutboundScheduler.Entry queued : buffer.drain()) {
+            if (queued.getSequence() == 0) {
+                unjournaled.add(queued);
             }
-        }, 35l, TimeUnit.SECONDS);
+        }
+        for (OutboundJournal.Entry entry : entries) {
+            completeInJournal(buffer.add(entry.getCommand(), entry.getPriority(), entry.getSequence()),
+                    entry.getCommand());
+        }
+        for (OutboundScheduler.Entry queued : unjournaled) {
+            completeInJournal(buffer.add(queued.getCommand(), queued.getPriority(), 0), queued.getCommand());
+        }
+        if (!entries.isEmpty()) {
+            log.info("Replaying {} commands from the journal", entries.size());
+        }
+        if (!buffer.isEmpty()) {
+            state = LinkState.IDLE;
+            sendIfClear();
+        }
     }
 
-    private void exitReceivingPhase() {
-        receivingFuture.cancel(true);
+    private long journal(PbxCommand command, Priority priority) {
+        if (journal == null || command.getFunction() == PbxCommand.Function.STATUS_ENQUIRY) {
+            return 0;
+        }
+        try {
+            return journal.append(command, priority);
+        } catch (IOException e) {
+            log.error("Could not journal " + command + ", sending it anyway", e);
+            return 0;
+        }
     }
 
-    private void sendInit() {
+    /* Sent, or replaced by a later command for the same extension */
+    private void completeInJournal(long sequence, PbxCommand command) {
+        if (sequence == 0) {
+            return;
+        }
         try {
-            serialLayer.sendMessage(INIT.getBytes());
-        } catch (Exception e) {
-            log.debug("IO Exception", e);
+            journal.complete(sequence);
+        } catch (IOException e) {
+            log.error("Could not complete " + command + " in the journal, it will be sent again after a restart", e);
         }
     }
 
-    private boolean isPhaseOne() {
-        return initSentFuture == null || !initSentFuture.isDone();
+    private void onFrame(byte[] frame, int length) {
+        if (log.isDebugEnabled()) {
+            log.debug("Received message {} in state {}", toDebugString(frame, 0, length), state);
+        }
+        if (matches(frame, length, INIT_BYTES)) {
+            onInit();
+        } else if (length > 3 && (frame[0] == STX) && (frame[length - 2] == ETX)) {
+            onDataFrame(frame, length);
+        } else if (matches(frame, length, EOT_BYTES)) {
+            onEOT();
+        } else if (matches(frame, length, ACK_BYTES)) {
+            onACK();
+        } else if (matches(frame, length, NAK_BYTES)) {
+            onNAK();
+        } else if (matches(frame, length, ENQ_BYTES)) {
+            onENQ();
+        } else if (matches(frame, length, DLE_BUSY_BYTES)) {
+            onBusy();
+        } else if (log.isDebugEnabled()) {
+            log.debug("Received : {}", toDebugString(frame, 0, length));
+        }
     }
 
-    private boolean isReceiving(){
-        return receivingFuture == null || !receivingFuture.isDone();
+    private void onInit() {
+        switch (state) {
+            case SELECTING:
+                /*
+                 * Both ends selected at once, the PBX wins.  It repeats the select and we answer that, if it
+                 * does not our commands go out after the retry delay
+                 */
+                cancelTimer();
+                state = LinkState.IDLE;
+                if (!buffer.isEmpty()) {
+                    armTimer(TimerKind.RETRY, RETRY_DELAY);
+                }
+                break;
+            case SENDING:
+                log.warn("Select sequence received while waiting for an ACK, ignoring it");
+                break;
+            default:
+                reply(ACK_BYTES);
+                state = LinkState.RECEIVING;
+                armTimer(TimerKind.RECEIVE_TIMEOUT, RECEIVE_TIMEOUT);
+        }
     }
 
-    private boolean isPhaseTwo() {
-        return messageSentFuture == null || !messageSentFuture.isDone();
+    private void onDataFrame(byte[] frame, int length) {
+        if (state == LinkState.SELECTING || state == LinkState.SENDING) {
+            log.warn("Frame received in state {}, ignoring it", state);
+            return;
+        }
+        /*Check BCC and Send ACK/NAK and reset the receiving phase */
+        byte bcc = getBCC(frame, 1, length - 1);
+        byte received = frame[length - 1];
+        state = LinkState.RECEIVING;
+        if (received == bcc) {
+            framesReceived.inc();
+            String payload = new String(frame, 1, length - 3);
+            log.info("Receive Message : {}", payload);
+            reply(ACK_BYTES);
+            armTimer(TimerKind.RECEIVE_TIMEOUT, RECEIVE_TIMEOUT);
+            if (appLayer != null) {
+                appLayer.onMessage(payload);
+            }
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("Message BCC {} | Calculated BCC {}", received, bcc);
+            }
+            naksSent.inc();
+            reply(NAK_BYTES);
+            armTimer(TimerKind.RECEIVE_TIMEOUT, RECEIVE_TIMEOUT);
+        }
     }
 
-    private void sendMessage(final byte[] message) {
-        try {
-            serialLayer.sendMessage(message);
-        } catch (Exception e) {
-            log.debug("Exception on Send Message", e);
+    private void onEOT() {
+        switch (state) {
+            case RECEIVING:
+                /*//stop Timer 2-1 (35 Seconds)*/
+                cancelTimer();
+                state = LinkState.IDLE;
+                sendIfClear();
+                break;
+            case SELECTING:
+            case SENDING:
+                log.warn("PBX ended the link in state {}", state);
+                abortSession(false);
+                break;
+            default:
+                break;
         }
     }
 
-    private byte[] parseMessage(final String message) {
-        byte[] msg = ArrayUtils.add(message.getBytes(), ETX);
-                /* Sent message */
-        byte bcc = getBCC(msg);
-        msg = ArrayUtils.add(msg, bcc);
-        msg = ArrayUtils.add(msg, 0, STX);
-        return msg;
+    private void onACK() {
+        switch (state) {
+            case SELECTING:
+                /*//Stop Timer 1-1*/
+                cancelTimer();
+                startSession();
+                sendNextFrame();
+                break;
+            case SENDING:
+                /*//send the next queued frame in the same session or EOT*/
+                cancelTimer();
+                OutboundScheduler.Entry msg = buffer.complete();
+                long now = System.nanoTime();
+                ackLatency.record(TimeUnit.NANOSECONDS.toMicros(now - frameSent));
+                commandLatency.record(TimeUnit.NANOSECONDS.toMicros(now - msg.queued));
+                framesSent.inc();
+                log.debug("Receivd Ack and removing Message : {} from buffer", msg.command);
+                completeInJournal(msg.sequence, msg.command);
+                sessionFrames++;
+                if (sessionFrames < maxFramesPerSession && !buffer.isEmpty()) {
+                    sendNextFrame();
+                } else {
+                    endSession();
+                    sendEOT();
+                    state = LinkState.IDLE;
+                    sendIfClear();
+                }
+                break;
+            default:
+                log.error("Received ACK in state {}", state);
+        }
     }
 
-    private void enterPhaseOne() {
-        initSentFuture = scheduler.scheduleAtFixedRate(new Runnable() {
-            private int counter = 0;
-
-            @Override
-            public void run() {
-                if (counter < 16) {
-                /* Send init */
-                    try {
-                        log.info("inside sendInit retry:" + counter);
-                        serialLayer.sendMessage(INIT.getBytes());
-                        counter++;
-                    } catch (Exception e) {
-                        log.debug("IO Exception", e);
-                    }
+    private void onNAK() {
+        switch (state) {
+            case SENDING:
+                naksReceived.inc();
+                if (messageCounter < NAK_RETRIES) {
+                    messageCounter++;
+                    sendFrame();
                 } else {
-                    sendEOT();
-                    initSentFuture.cancel(true);
+                    log.warn("Message {} refused {} times, giving up for now", messageToSend, messageCounter);
+                    abortSession(true);
                 }
-            }
-        }, 0l, 1l, TimeUnit.SECONDS);
+                break;
+            case SELECTING:
+                onBusy();
+                break;
+            default:
+                log.debug("Received NAK in state {}", state);
+        }
     }
 
-    private void enterPhaseTwo() {
-        messageSentFuture = scheduler.scheduleAtFixedRate(new Runnable() {
-            int currentCount = 0;
+    private void onENQ() {
+        if (state == LinkState.RECEIVING && lastReply != null) {
+            /* The PBX missed our answer to its last frame */
+            reply(lastReply);
+        }
+    }
 
-            @Override
-            public void run() {
-                if (currentCount < 32) {
+    private void onBusy() {
+        if (state == LinkState.SELECTING) {
+            /*//Stop Timer 1-1*/
+            log.debug("PBX busy, retrying later");
+            busy.inc();
+            abortSession(true);
+        }
+    }
+
+    private void onTimer(TimerKind timer) {
+        switch (timer) {
+            case SELECT:
+                if (state != LinkState.SELECTING) {
+                    break;
+                }
+                if (attempts < SELECT_ATTEMPTS) {
+                    log.info("inside sendInit retry:{}", attempts);
+                    selectRetries.inc();
+                    attempts++;
+                    sendInit();
+                    armTimer(TimerKind.SELECT, SELECT_INTERVAL);
+                } else {
+                    log.warn("No answer to {} select attempts", attempts);
+                    abortSession(true);
+                }
+                break;
+            case ENQ_POLL:
+                if (state != LinkState.SENDING) {
+                    break;
+                }
+                if (attempts < ENQ_POLLS) {
+                    attempts++;
+                    enqPolls.inc();
                     sendENQ();
+                    armTimer(TimerKind.ENQ_POLL, ENQ_INTERVAL);
                 } else {
-                    exitPhaseTwo();
-                    messageCounter = 0;
-                    sendEOT();
+                    log.warn("No answer to {} ENQ polls", attempts);
+                    abortSession(true);
                 }
-            }
-        }, 1l, 1l, TimeUnit.SECONDS);
+                break;
+            case RECEIVE_TIMEOUT:
+                if (state == LinkState.RECEIVING) {
+                    log.warn("PBX did not finish sending within {} ms", RECEIVE_TIMEOUT);
+                    state = LinkState.IDLE;
+                    sendIfClear();
+                }
+                break;
+            case RETRY:
+                sendIfClear();
+                break;
+        }
+    }
+
+    private void sendIfClear(){
+        if (state == LinkState.IDLE && !buffer.isEmpty()) {
+            state = LinkState.SELECTING;
+            attempts = 1;
+            sendInit();
+            armTimer(TimerKind.SELECT, SELECT_INTERVAL);
+        }
+    }
+
+    private void startSession() {
+        sessionFrames = 0;
+        sessionStarted = System.nanoTime();
+    }
+
+    private void sendNextFrame() {
+        messageToSend = buffer.current().command;
+        messageCounter = 0;
+        frameSent = System.nanoTime();
+        sendFrame();
+    }
+
+    private void sendFrame() {
+        int length;
+        try {
+            length = encoder.encode(messageToSend);
+        } catch (IllegalArgumentException e) {
+            /* Sending it again would fail the same way and hold up everything behind it */
+            log.error("Could not encode " + messageToSend + ", dropping it", e);
+            OutboundScheduler.Entry dropped = buffer.complete();
+            completeInJournal(dropped.sequence, dropped.command);
+            messageToSend = null;
+            cancelTimer();
+            endSession();
+            sendEOT();
+            state = LinkState.IDLE;
+            sendIfClear();
+            return;
+        }
+        state = LinkState.SENDING;
+        attempts = 0;
+        sendMessage(encoder.buffer(), length);
+        armTimer(TimerKind.ENQ_POLL, ENQ_INTERVAL);
+    }
+
+    private void endSession() {
+        long elapsed = System.nanoTime() - sessionStarted;
+        totalFramesSent += sessionFrames;
+        totalSessionNanos += elapsed;
+        if (sessionFrames > 0) {
+            log.info("Session sent {} messages in {} ms ({} msg/s overall)", sessionFrames,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), String.format("%.2f", getMessagesPerSecond()));
+        }
+    }
+
+    /**
+     * Gives up on the current select or session.  Messages not yet acknowledged stay queued.
+     */
+    private void abortSession(boolean sendEOT) {
+        cancelTimer();
+        sessionsAborted.inc();
+        if (state == LinkState.SENDING) {
+            endSession();
+        }
+        if (sendEOT) {
+            sendEOT();
+        }
+        messageCounter = 0;
+        state = LinkState.IDLE;
+        if (!buffer.isEmpty()) {
+            armTimer(TimerKind.RETRY, RETRY_DELAY);
+        }
+    }
+
+    private void armTimer(TimerKind kind, long delay) {
+        timerGeneration++;
+        timerKind = kind;
+        timer.schedule(linkTimer, delay, TimeUnit.MILLISECONDS, timerGeneration);
+    }
+
+    /* A timer that already fired is recognised as stale by its generation */
+    private void cancelTimer() {
+        timerGeneration++;
+        timer.cancel(linkTimer);
     }
 
-    private void exitPhaseTwo() {
-        messageSentFuture.cancel(false);
+    private void reply(byte[] reply) {
+        lastReply = reply;
+        sendMessage(reply);
     }
 
-    private void exitPhaseOne() {
-        initSentFuture.cancel(false);
+    private static boolean matches(byte[] buffer, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void sendNAK() {
+    private static String toDebugString(byte[] buffer, int offset, int length) {
+        return Arrays.toString(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    private void sendInit() {
         try {
-            serialLayer.sendMessage(new byte[]{NAK});
+            serialLayer.sendMessage(INIT_BYTES);
         } catch (Exception e) {
-            log.warn("Exception on Send Message", e);
+            log.debug("IO Exception", e);
         }
     }
 
-    private void sendACK() {
+    private void sendMessage(final byte[] message) {
+        sendMessage(message, message.length);
+    }
+
+    private void sendMessage(final byte[] message, int length) {
         try {
-            serialLayer.sendMessage(new byte[]{ACK});
+            serialLayer.sendMessage(message, 0, length);
         } catch (Exception e) {
-            log.warn("Exception on Send Message", e);
+            log.debug("Exception on Send Message", e);
         }
     }
 
     private void sendEOT() {
         try {
-            serialLayer.sendMessage(new byte[]{EOT});
+            serialLayer.sendMessage(EOT_BYTES);
         } catch (Exception e) {
             log.debug("Exception on Send Message", e);
         }
@@ -261,17 +807,17 @@ public class DataLayerImpl implements DataLayer {
 
     private void sendENQ() {
         try {
-            serialLayer.sendMessage(new byte[]{ENQ});
+            serialLayer.sendMessage(ENQ_BYTES);
         } catch (Exception e) {
             log.debug("Exception on Send Message", e);
         }
     }
 
 
-    private byte getBCC(byte[] msg) {
+    static byte getBCC(byte[] msg, int from, int to) {
         byte lrc = 0;
-        for (byte aMsg : msg) {
-            lrc = (byte) (lrc ^ aMsg);
+        for (int i = from; i < to; i++) {
+            lrc = (byte) (lrc ^ msg[i]);
         }
         return lrc;
     }
@@ -0,0 +1,46 @@
+package in.orangecounty.tel.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the gateway configuration from environment variables, falling back to a default when a
+ * variable is missing or malformed.
+ */
+public final class Env {
+    private static final Logger log = LoggerFactory.getLogger(Env.class);
+
+    private Env() {
+    }
+
+    public static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring {}={}, not a number. Using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring {}={}, not a number. Using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
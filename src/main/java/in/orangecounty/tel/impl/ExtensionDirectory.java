@@ -0,0 +1,256 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.service.ExtensionCallback;
+import in.orangecounty.tel.service.ExtensionTable;
+import in.orangecounty.tel.service.PMSRestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rooms of the property with their guest, kept in memory for the front desk so a dashboard polling
+ * the directory costs neither the PMS nor the PBX anything.
+ * <p/>
+ * The whole directory is read from the PMS when it is first asked for and again once it is older than 80%
+ * of DIRECTORY_TTL_SECONDS (300 by default): the reader that notices gets the entries held and the refresh
+ * runs on a thread of its own, so no request waits on the PMS.  Between refreshes check ins, check outs,
+ * name changes and syncs update single entries as they go to the PBX, and the calls the PBX reports set the
+ * last call of a room.  A refresh drops the rooms the PMS no longer lists unless they changed meanwhile.
+ * <p/>
+ * At most DIRECTORY_SIZE (10000) rooms are held, the one updated longest ago goes first.  Every change
+ * moves the directory to a new version, {@link #snapshot()} returns the entries of the current version
+ * sorted by extension, built once per version, and its tag, for ETags.  Thread safe.
+ */
+public class ExtensionDirectory implements ExtensionCallback {
+    private static final Logger log = LoggerFactory.getLogger(ExtensionDirectory.class);
+    /* Part of the TTL after which the next read refreshes */
+    private static final double REFRESH_AHEAD = 0.8;
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * One room.  Immutable, an update replaces it.
+     */
+    public static final class Entry {
+        private final long extension;
+        private final String name;
+        private final boolean unrestricted;
+        private final long lastCall;
+        private final long updated;
+
+        Entry(long extension, String name, boolean unrestricted, long lastCall, long updated) {
+            this.extension = extension;
+            this.name = name;
+            this.unrestricted = unrestricted;
+            this.lastCall = lastCall;
+            this.updated = updated;
+        }
+
+        public long getExtension() {
+            return extension;
+        }
+
+        /**
+         * @return the guest name, empty for a vacant room
+         */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isUnrestricted() {
+            return unrestricted;
+        }
+
+        /**
+         * @return start of the last call from the room, 0 if none was seen
+         */
+        public long getLastCall() {
+            return lastCall;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+    }
+
+    /**
+     * The directory at one version.
+     */
+    public static final class Snapshot {
+        private final String tag;
+        private final List<Entry> entries;
+        private final boolean stale;
+
+        Snapshot(String tag, List<Entry> entries, boolean stale) {
+            this.tag = tag;
+            this.entries = entries;
+            this.stale = stale;
+        }
+
+        /**
+         * @return changes whenever an entry does, also across restarts
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return true if the last complete read of the PMS is older than the TTL
+         */
+        public boolean isStale() {
+            return stale;
+        }
+    }
+
+    private final PMSRestClient pmsRestClient;
+    private final long ttlMillis;
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final LinkedHashMap<Long, Entry> entries;
+    private long version;
+    private Snapshot snapshot;
+    private long loadedAt = 0;
+    private long refreshDue = 0;
+    private boolean refreshing;
+
+    public ExtensionDirectory(PMSRestClient pmsRestClient, long ttlMillis, final int maxEntries) {
+        this.pmsRestClient = pmsRestClient;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<Long, Entry>(256, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static ExtensionDirectory fromEnvironment(PMSRestClient pmsRestClient) {
+        return new ExtensionDirectory(pmsRestClient,
+                TimeUnit.SECONDS.toMillis(Env.getLong("DIRECTORY_TTL_SECONDS", 300)),
+                Env.getInt("DIRECTORY_SIZE", 10000));
+    }
+
+    /**
+     * Sets the guest and restriction of a room, as the PMS has them.
+     */
+    @Override
+    public synchronized void onExtension(long extension, boolean unrestricted, String name) {
+        Entry entry = entries.get(extension);
+        String guest = name == null ? "" : name.trim();
+        if (entry != null && entry.unrestricted == unrestricted && entry.name.equals(guest)) {
+            return;
+        }
+        put(new Entry(extension, guest, unrestricted, entry == null ? 0 : entry.lastCall,
+                System.currentTimeMillis()));
+    }
+
+    public synchronized void onName(long extension, String name) {
+        Entry entry = entries.get(extension);
+        onExtension(extension, entry != null && entry.unrestricted, name);
+    }
+
+    /**
+     * Notes the call on its room, if the room is known.
+     */
+    public synchronized void onCall(CallRecord record) {
+        long extension;
+        try {
+            extension = Long.parseLong(record.getStation());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        Entry entry = entries.get(extension);
+        if (entry != null && record.getStartTime() > entry.lastCall) {
+            put(new Entry(extension, entry.name, entry.unrestricted, record.getStartTime(),
+                    System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return the directory as it is now, starting a refresh from the PMS if one is due
+     */
+    public synchronized Snapshot snapshot() {
+        long now = System.currentTimeMillis();
+        if (!refreshing && now >= refreshDue) {
+            refreshing = true;
+            Thread refresher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            }, "directory-refresh");
+            refresher.setDaemon(true);
+            refresher.start();
+        }
+        boolean stale = now - loadedAt > ttlMillis;
+        String tag = epoch + "-" + version + (stale ? "-stale" : "");
+        if (snapshot == null || !snapshot.tag.equals(tag)) {
+            List<Entry> sorted = new ArrayList<Entry>(entries.values());
+            Collections.sort(sorted, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return a.extension < b.extension ? -1 : a.extension == b.extension ? 0 : 1;
+                }
+            });
+            snapshot = new Snapshot(tag, Collections.unmodifiableList(sorted), stale);
+        }
+        return snapshot;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "extension directory " + entries.size() + " rooms, version " + version + ", loaded "
+                + (loadedAt == 0 ? "never" : (System.currentTimeMillis() - loadedAt) / 1000 + " s ago");
+    }
+
+    private void put(Entry entry) {
+        /* Remove first so the entry moves to the young end */
+        entries.remove(entry.extension);
+        entries.put(entry.extension, entry);
+        version++;
+    }
+
+    /* Reads every room from the PMS, then drops those it no longer lists */
+    private void refresh() {
+        long started = System.currentTimeMillis();
+        ExtensionTable table = null;
+        try {
+            table = pmsRestClient.getExtensions(this);
+        } catch (RuntimeException e) {
+            log.warn("Refreshing the extension directory failed", e);
+        }
+        synchronized (this) {
+            refreshing = false;
+            if (table == null) {
+                refreshDue = System.currentTimeMillis() + Math.min(RETRY_MILLIS, ttlMillis);
+                log.warn("Extension directory not refreshed, the PMS did not answer in full");
+                return;
+            }
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+                Entry entry = i.next();
+                if (entry.updated < started && !table.contains(entry.extension)) {
+                    i.remove();
+                    version++;
+                }
+            }
+            loadedAt = started;
+            refreshDue = started + (long) (ttlMillis * REFRESH_AHEAD);
+            log.debug("Extension directory refreshed, {} rooms", entries.size());
+        }
+    }
+}
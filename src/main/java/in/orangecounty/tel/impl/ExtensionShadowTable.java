@@ -0,0 +1,163 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.service.ExtensionHashTable;
+
+import java.util.Arrays;
+
+/**
+ * What the PBX was last told about each extension: its name and restriction level.
+ * <p/>
+ * An {@link ExtensionHashTable} with the name and level in parallel arrays, so a property of a few
+ * thousand rooms costs a few arrays rather than an entry object and a boxed key per room.  Names are kept
+ * as the PBX sees them, trimmed and cut to {@link PbxCommand#NAME_WIDTH} characters.
+ * <p/>
+ * The update methods record the new value and report whether it differs from the last one, the caller
+ * sends a command only when it does.  Thread safe.
+ */
+public class ExtensionShadowTable extends ExtensionHashTable {
+    /** Level of an extension whose restriction is not known */
+    public static final byte UNKNOWN = -1;
+
+    /**
+     * The table at one moment, sorted by extension for binary search.  Names not known are null.
+     */
+    public static final class Snapshot {
+        private final long[] extensions;
+        private final String[] names;
+        private final byte[] levels;
+
+        Snapshot(long[] extensions, String[] names, byte[] levels) {
+            this.extensions = extensions;
+            this.names = names;
+            this.levels = levels;
+        }
+
+        public int size() {
+            return extensions.length;
+        }
+
+        /**
+         * @return the index of the extension, or a negative number if it is not held
+         */
+        public int indexOf(long extension) {
+            return Arrays.binarySearch(extensions, extension);
+        }
+
+        public long getExtension(int index) {
+            return extensions[index];
+        }
+
+        public String getName(int index) {
+            return names[index];
+        }
+
+        /**
+         * @return the level, or {@link #UNKNOWN}
+         */
+        public byte getLevel(int index) {
+            return levels[index];
+        }
+    }
+
+    private String[] names;
+    private byte[] levels;
+
+    public ExtensionShadowTable() {
+        this(256);
+    }
+
+    public ExtensionShadowTable(int expectedExtensions) {
+        super(expectedExtensions);
+        names = new String[keys.length];
+        levels = new byte[keys.length];
+        Arrays.fill(levels, UNKNOWN);
+    }
+
+    /**
+     * @return true if the name differs from what the PBX was last told, or nothing is known yet
+     */
+    public synchronized boolean updateName(long extension, String name) {
+        String shown = normalise(name);
+        int slot = insert(extension);
+        if (shown.equals(names[slot])) {
+            return false;
+        }
+        names[slot] = shown;
+        return true;
+    }
+
+    /**
+     * @return true if the level differs from what the PBX was last told, or nothing is known yet
+     */
+    public synchronized boolean updateRestriction(long extension, int level) {
+        int slot = insert(extension);
+        if (level < 0 || level > Byte.MAX_VALUE) {
+            levels[slot] = UNKNOWN;
+            return true;
+        }
+        if (levels[slot] == level) {
+            return false;
+        }
+        levels[slot] = (byte) level;
+        return true;
+    }
+
+    /**
+     * Forgets everything, the next sync sends every extension again.
+     */
+    public synchronized void clear() {
+        clearKeys();
+        Arrays.fill(names, null);
+        Arrays.fill(levels, UNKNOWN);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of every extension held, sorted
+     */
+    public synchronized Snapshot snapshot() {
+        long[] sorted = new long[size];
+        int n = 0;
+        for (long key : keys) {
+            if (key != FREE) {
+                sorted[n++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        String[] sortedNames = new String[size];
+        byte[] sortedLevels = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int slot = find(sorted[i]);
+            sortedNames[i] = names[slot];
+            sortedLevels[i] = levels[slot];
+        }
+        return new Snapshot(sorted, sortedNames, sortedLevels);
+    }
+
+    /**
+     * @return the name as the PBX shows it
+     */
+    static String normalise(String name) {
+        String trimmed = name == null ? "" : name.trim();
+        return trimmed.length() > PbxCommand.NAME_WIDTH ? trimmed.substring(0, PbxCommand.NAME_WIDTH) : trimmed;
+    }
+
+    @Override
+    protected void resize(int capacity, int[] moved) {
+        String[] oldNames = names;
+        byte[] oldLevels = levels;
+        names = new String[capacity];
+        levels = new byte[capacity];
+        Arrays.fill(levels, UNKNOWN);
+        for (int i = 0; i < moved.length; i++) {
+            if (moved[i] >= 0) {
+                names[moved[i]] = oldNames[i];
+                levels[moved[i]] = oldLevels[i];
+            }
+        }
+    }
+}
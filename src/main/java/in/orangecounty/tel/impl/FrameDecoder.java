@@ -0,0 +1,155 @@
+package in.orangecounty.tel.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental decoder for the bytes coming in on the PBX link.
+ * <p/>
+ * Bytes are fed in as they arrive from the serial port and every complete unit is handed to the
+ * {@link Listener} as soon as its last byte is seen. The units recognised are the single control
+ * characters (ACK, NAK, EOT, ENQ), DLE '<', the select sequence "1!" ENQ and data frames of the form
+ * STX ... ETX BCC. Anything else is line noise and is dropped.
+ * <p/>
+ * Frames are handed over as slices of the decoder's own preallocated buffer, which is only valid for the
+ * duration of the callback.
+ */
+public class FrameDecoder {
+    private static final Logger log = LoggerFactory.getLogger(FrameDecoder.class);
+    static final int MAX_FRAME_LENGTH = 400;
+    private static final byte STX = 2;
+    private static final byte ETX = 3;
+    private static final byte EOT = 4;
+    private static final byte ENQ = 5;
+    private static final byte ACK = 6;
+    private static final byte DLE = 16;
+    private static final byte NAK = 21;
+
+    public interface Listener {
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    private enum State {
+        IDLE, DLE, SELECT, SELECT_ADDRESS, FRAME, BCC
+    }
+
+    private final Listener listener;
+    private final byte[] frame = new byte[MAX_FRAME_LENGTH];
+    private int length = 0;
+    private State state = State.IDLE;
+
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void decode(byte[] data, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            decode(data[i]);
+        }
+    }
+
+    public void decode(byte b) {
+        switch (state) {
+            case IDLE:
+                start(b);
+                break;
+            case DLE:
+                if (b == '<') {
+                    append(b);
+                    emit();
+                } else {
+                    discard();
+                    start(b);
+                }
+                break;
+            case SELECT:
+                if (b == '!') {
+                    append(b);
+                    state = State.SELECT_ADDRESS;
+                } else {
+                    discard();
+                    start(b);
+                }
+                break;
+            case SELECT_ADDRESS:
+                if (b == ENQ) {
+                    append(b);
+                    emit();
+                } else {
+                    discard();
+                    start(b);
+                }
+                break;
+            case FRAME:
+                if (b == STX) {
+                    /* A new frame started before the old one ended, resynchronise on it */
+                    discard();
+                    start(b);
+                } else if (length == MAX_FRAME_LENGTH - 1) {
+                    log.warn("Frame longer than {} bytes, discarding", MAX_FRAME_LENGTH);
+                    discard();
+                } else {
+                    append(b);
+                    if (b == ETX) {
+                        state = State.BCC;
+                    }
+                }
+                break;
+            case BCC:
+                /* The BCC can take any value, including the control characters */
+                append(b);
+                emit();
+                break;
+        }
+    }
+
+    public void reset() {
+        length = 0;
+        state = State.IDLE;
+    }
+
+    private void start(byte b) {
+        switch (b) {
+            case ACK:
+            case NAK:
+            case EOT:
+            case ENQ:
+                append(b);
+                emit();
+                break;
+            case DLE:
+                append(b);
+                state = State.DLE;
+                break;
+            case '1':
+                append(b);
+                state = State.SELECT;
+                break;
+            case STX:
+                append(b);
+                state = State.FRAME;
+                break;
+            default:
+                if (log.isDebugEnabled()) {
+                    log.debug("Dropping unexpected byte {}", b);
+                }
+        }
+    }
+
+    private void append(byte b) {
+        frame[length++] = b;
+    }
+
+    private void emit() {
+        int frameLength = length;
+        reset();
+        listener.onFrame(frame, 0, frameLength);
+    }
+
+    private void discard() {
+        if (log.isDebugEnabled()) {
+            log.debug("Discarding {} bytes of incomplete input", length);
+        }
+        reset();
+    }
+}
@@ -0,0 +1,114 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+
+/**
+ * Writes a {@link PbxCommand} as STX, the message text, ETX and the BCC into a buffer that is reused for
+ * every frame.
+ * <p/>
+ * The fixed width fields are written straight from the command's strings and the BCC is computed as the
+ * bytes go in, so a frame is built in one pass without allocating.  The link runs 7 bit, characters
+ * outside printable ASCII are sent as '?'.  Not thread safe, each data layer owns one.
+ */
+public class FrameEncoder {
+    private static final byte STX = 2;
+    private static final byte ETX = 3;
+    /** Most message text a frame holds, besides STX, ETX and the BCC */
+    public static final int MAX_TEXT = FrameDecoder.MAX_FRAME_LENGTH - 3;
+
+    private final byte[] frame = new byte[FrameDecoder.MAX_FRAME_LENGTH];
+    private int length = 0;
+    private byte bcc = 0;
+
+    /**
+     * @return false if the command's text is longer than {@link #MAX_TEXT}, {@link #encode} would refuse it
+     */
+    public static boolean fits(PbxCommand command) {
+        int text = command.getFunction().getPrefix().length();
+        switch (command.getFunction()) {
+            case SET_RESTRICTION:
+                text += PbxCommand.EXTENSION_WIDTH + 2 + command.getArgument().length() + 2;
+                break;
+            case SET_NAME:
+                text += PbxCommand.EXTENSION_WIDTH + 2 + PbxCommand.NAME_WIDTH;
+                break;
+            case STATUS_ENQUIRY:
+                text += 2;
+                break;
+            case RAW:
+                text += command.getArgument().length();
+                break;
+        }
+        return text <= MAX_TEXT;
+    }
+
+    /**
+     * @return the length of the frame now held in {@link #buffer()}
+     * @throws IllegalArgumentException if the command does not {@link #fits fit} in a frame
+     */
+    public int encode(PbxCommand command) {
+        length = 0;
+        bcc = 0;
+        frame[length++] = STX;
+        appendText(command.getFunction().getPrefix());
+        switch (command.getFunction()) {
+            case SET_RESTRICTION:
+                appendField(command.getExtension(), PbxCommand.EXTENSION_WIDTH);
+                appendText("  ");
+                appendText(command.getArgument());
+                appendText("  ");
+                break;
+            case SET_NAME:
+                appendField(command.getExtension(), PbxCommand.EXTENSION_WIDTH);
+                appendText("  ");
+                appendField(command.getArgument(), PbxCommand.NAME_WIDTH);
+                break;
+            case STATUS_ENQUIRY:
+                appendText("  ");
+                break;
+            case RAW:
+                appendText(command.getArgument());
+                break;
+        }
+        append(ETX);
+        frame[length++] = bcc;
+        return length;
+    }
+
+    public byte[] buffer() {
+        return frame;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /* Left aligned, padded with spaces or cut to the width */
+    private void appendField(String value, int width) {
+        int count = Math.min(value.length(), width);
+        for (int i = 0; i < count; i++) {
+            append(toAscii(value.charAt(i)));
+        }
+        for (int i = count; i < width; i++) {
+            append((byte) ' ');
+        }
+    }
+
+    private void appendText(String text) {
+        if (text.length() > frame.length - length - 2) {
+            throw new IllegalArgumentException("Message longer than " + FrameDecoder.MAX_FRAME_LENGTH + " bytes");
+        }
+        for (int i = 0; i < text.length(); i++) {
+            append(toAscii(text.charAt(i)));
+        }
+    }
+
+    private void append(byte b) {
+        frame[length++] = b;
+        bcc ^= b;
+    }
+
+    private static byte toAscii(char c) {
+        return c >= ' ' && c < 0x7F ? (byte) c : (byte) '?';
+    }
+}
@@ -0,0 +1,204 @@
+package in.orangecounty.tel.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel running the protocol timers of every layer on one thread.
+ * <p/>
+ * Timers are {@link Timeout} objects owned by the caller and linked straight into the wheel's buckets,
+ * so arming, re-arming and cancelling a timer is a constant time pointer update under a short lock and
+ * never allocates.  Expiry is accurate to one tick, which is plenty for timers measured in seconds.
+ * Expired timers run on the wheel thread and must only hand work off, never block.
+ */
+public class HashedWheelTimer {
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+    private static HashedWheelTimer shared;
+
+    /**
+     * A re-armable timer.  Subclasses implement {@link #expired(long)}.
+     */
+    public abstract static class Timeout {
+        private Timeout next;
+        private Timeout prev;
+        private Timeout nextExpired;
+        private int bucket = -1;
+        private long deadlineTick;
+        private long tag;
+        private long firedTag;
+
+        /**
+         * Called on the wheel thread.
+         *
+         * @param tag the value passed to {@link HashedWheelTimer#schedule} when this expiry was armed
+         */
+        protected abstract void expired(long tag);
+
+        public boolean isArmed() {
+            return bucket >= 0;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private long tick = 0;
+    private long startTime;
+    private Thread worker;
+    private volatile boolean running = false;
+
+    /**
+     * @param tickDuration  resolution of the timer
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.name = name;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 2) - 1) << 1;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * The timer shared by the protocol layers, started on first use.  Ticks every 50 ms.
+     */
+    public static synchronized HashedWheelTimer shared() {
+        if (shared == null) {
+            shared = new HashedWheelTimer("protocol-timer", 50, TimeUnit.MILLISECONDS, 512);
+            shared.start();
+        }
+        return shared;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        /* Continue from the current tick so timers armed before a restart keep their deadlines */
+        startTime = System.nanoTime() - tick * tickNanos;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = worker;
+            worker = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+        schedule(timeout, delay, unit, 0);
+    }
+
+    /**
+     * Arms the timer, moving it if it is already armed.
+     *
+     * @param tag handed back to {@link Timeout#expired(long)}, so an owner can tell which arming fired
+     */
+    public synchronized void schedule(Timeout timeout, long delay, TimeUnit unit, long tag) {
+        unlink(timeout);
+        long ticks = (unit.toNanos(Math.max(0, delay)) + tickNanos - 1) / tickNanos;
+        timeout.deadlineTick = tick + Math.max(1, ticks);
+        timeout.tag = tag;
+        link(timeout, (int) (timeout.deadlineTick & mask));
+    }
+
+    /**
+     * @return true if the timer was armed.  A timer already handed to its expiry may still run.
+     */
+    public synchronized boolean cancel(Timeout timeout) {
+        if (!timeout.isArmed()) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    private void runWheel() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            Timeout expired = advance();
+            while (expired != null) {
+                Timeout current = expired;
+                expired = current.nextExpired;
+                current.nextExpired = null;
+                try {
+                    current.expired(current.firedTag);
+                } catch (RuntimeException e) {
+                    log.error("Timer threw an exception", e);
+                }
+            }
+        }
+    }
+
+    /* Moves to the next tick and unlinks everything that is due, returning it as a list */
+    private synchronized Timeout advance() {
+        tick++;
+        Timeout expired = null;
+        Timeout timeout = wheel[(int) (tick & mask)];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) {
+                unlink(timeout);
+                /* Captured under the lock, the owner may re-arm before the expiry runs */
+                timeout.firedTag = timeout.tag;
+                timeout.nextExpired = expired;
+                expired = timeout;
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        Timeout head = wheel[bucket];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        wheel[bucket] = timeout;
+        timeout.bucket = bucket;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.next = null;
+        timeout.prev = null;
+        timeout.bucket = -1;
+    }
+}
@@ -0,0 +1,501 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+import in.orangecounty.tel.metrics.Gauge;
+import in.orangecounty.tel.metrics.MetricsRegistry;
+import in.orangecounty.tel.service.ExtensionCallback;
+import in.orangecounty.tel.service.ExtensionTable;
+import in.orangecounty.tel.service.PMSRestClient;
+import in.orangecounty.tel.service.impl.PooledPMSRestClientImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one SerialImpl / DataLayerImpl / NEAX7400PmsProtocolImpl stack per PBX from a single process.
+ * <p/>
+ * Links are read from the PBX_LINKS environment variable as a comma separated list of
+ * port:firstExtension-lastExtension, for example "/dev/ttyS0:100-399,/dev/ttyS1:400-699".  Without it a
+ * single link on SERIAL_PORT_NAME serves every extension.
+ * <p/>
+ * All links share the protocol timer, one bounded pool of worker threads running their event loops
+ * (WORKER_THREADS, 4 by default) and the PMS client, so the thread count does not grow with the number
+ * of links beyond the one RXTX keeps per open port.  Call records from every link go through one
+ * {@link CallRecordPipeline}, which keeps what the PMS does not accept in a {@link CallRecordOutbox} and
+ * every call in a {@link CallArchive}.  With TARIFF_FILE set each call is priced by a {@link TariffTable} as
+ * it is received.  The guests and calls that pass through keep an {@link ExtensionDirectory} current.
+ * {@link #reconcile()} corrects the rooms whose PBX state drifted from the PMS, see {@link Reconciler}.
+ * <p/>
+ * Each link journals its outbound queue to a file named after its port in JOURNAL_DIR (tel-journal in the
+ * user's home directory by default), see {@link OutboundJournal}.  Commands for a room are routed to the link whose
+ * extension range contains it.
+ * <p/>
+ * With WIRE_TRACE_DIR set every link also records its raw bytes to a ring file of WIRE_TRACE_SIZE bytes
+ * (4 MB by default) named after its port, see {@link WireTraceRecorder}.
+ */
+public class LinkManager {
+    private static final Logger log = LoggerFactory.getLogger(LinkManager.class);
+
+    /**
+     * One PBX and the layers talking to it.
+     */
+    public static class Link {
+        private final String portName;
+        private final long firstExtension;
+        private final long lastExtension;
+        private final SerialImpl serial = new SerialImpl();
+        private final DataLayerImpl dataLayer = new DataLayerImpl();
+        private final NEAX7400PmsProtocolImpl protocol = new NEAX7400PmsProtocolImpl();
+        private volatile boolean connected = false;
+        private WireTraceRecorder trace;
+
+        Link(String portName, long firstExtension, long lastExtension) {
+            this.portName = portName;
+            this.firstExtension = firstExtension;
+            this.lastExtension = lastExtension;
+            serial.setPortName(portName);
+            serial.setDataLayer(dataLayer);
+            dataLayer.setSerialLayer(serial);
+            dataLayer.setAppLayer(protocol);
+            protocol.setDataLayer(dataLayer);
+        }
+
+        void setMetrics(MetricsRegistry registry) {
+            String prefix = "link." + portName;
+            serial.setMetrics(registry, prefix + ".serial");
+            dataLayer.setMetrics(registry, prefix);
+            protocol.setMetrics(registry, prefix);
+        }
+
+        public String getPortName() {
+            return portName;
+        }
+
+        public long getFirstExtension() {
+            return firstExtension;
+        }
+
+        public long getLastExtension() {
+            return lastExtension;
+        }
+
+        public DataLayerImpl getDataLayer() {
+            return dataLayer;
+        }
+
+        public NEAX7400PmsProtocolImpl getProtocol() {
+            return protocol;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public boolean serves(long extension) {
+            return extension >= firstExtension && extension <= lastExtension;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(portName).append(" [").append(firstExtension).append('-')
+                    .append(lastExtension).append("] ").append(connected ? dataLayer.getState() : "DISCONNECTED");
+            for (Priority priority : Priority.values()) {
+                text.append("\n  ").append(priority).append(": ").append(dataLayer.getQueueStats(priority));
+            }
+            return text.toString();
+        }
+    }
+
+    /* Sorted by first extension */
+    private final List<Link> links = new ArrayList<Link>();
+    private final HashedWheelTimer timer;
+    private final PMSRestClient pmsRestClient;
+    private final CallRecordPipeline callRecordPipeline;
+    private File journalDir = new File(Env.getString("JOURNAL_DIR",
+            new File(System.getProperty("user.home"), "tel-journal").getPath()));
+    private ExecutorService workers;
+    private final int workerThreads;
+    private TariffTable tariffTable;
+    private final ExtensionDirectory directory;
+    private final Reconciler reconciler;
+
+    /**
+     * @param callRecordPipeline takes the call records of every link, started and stopped with the links
+     */
+    public LinkManager(HashedWheelTimer timer, PMSRestClient pmsRestClient, CallRecordPipeline callRecordPipeline,
+                       int workerThreads) {
+        if (callRecordPipeline == null) {
+            throw new IllegalArgumentException("A call record pipeline is required");
+        }
+        this.timer = timer;
+        this.pmsRestClient = pmsRestClient;
+        this.callRecordPipeline = callRecordPipeline;
+        this.workerThreads = workerThreads;
+        this.directory = ExtensionDirectory.fromEnvironment(pmsRestClient);
+        this.reconciler = new Reconciler(pmsRestClient, directory);
+        reconciler.setMetrics(MetricsRegistry.shared(), "reconcile");
+        callRecordPipeline.setDirectory(directory);
+        registerPipelineMetrics(callRecordPipeline);
+    }
+
+    public static LinkManager fromEnvironment() {
+        PooledPMSRestClientImpl pmsRestClient = new PooledPMSRestClientImpl();
+        pmsRestClient.setMetrics(MetricsRegistry.shared(), "pms");
+        LinkManager manager = new LinkManager(HashedWheelTimer.shared(), pmsRestClient,
+                CallRecordPipeline.fromEnvironment(pmsRestClient), Env.getInt("WORKER_THREADS", 4));
+        manager.setTariffTable(TariffTable.fromEnvironment());
+        String config = Env.getString("PBX_LINKS", null);
+        if (config == null) {
+            manager.addLink(Env.getString("SERIAL_PORT_NAME", "/dev/ttyS0"), 0, Long.MAX_VALUE);
+            return manager;
+        }
+        for (String entry : config.split(",")) {
+            String link = entry.trim();
+            int colon = link.lastIndexOf(':');
+            int dash = link.indexOf('-', colon + 1);
+            if (colon < 1 || dash < 0) {
+                throw new IllegalArgumentException("PBX_LINKS entry " + link + " is not port:first-last");
+            }
+            manager.addLink(link.substring(0, colon),
+                    Long.parseLong(link.substring(colon + 1, dash).trim()),
+                    Long.parseLong(link.substring(dash + 1).trim()));
+        }
+        return manager;
+    }
+
+    /**
+     * Tariff for the calls of links added after this call, null to leave rating to the PMS.
+     */
+    public synchronized void setTariffTable(TariffTable tariffTable) {
+        this.tariffTable = tariffTable;
+    }
+
+    /**
+     * Directory for the journals of links added after this call.
+     */
+    public synchronized void setJournalDir(File journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    public synchronized Link addLink(String portName, long firstExtension, long lastExtension) {
+        if (firstExtension > lastExtension) {
+            throw new IllegalArgumentException("Empty extension range for " + portName);
+        }
+        int index = 0;
+        while (index < links.size() && links.get(index).firstExtension < firstExtension) {
+            index++;
+        }
+        if ((index > 0 && links.get(index - 1).lastExtension >= firstExtension)
+                || (index < links.size() && links.get(index).firstExtension <= lastExtension)) {
+            throw new IllegalArgumentException("Extension range of " + portName + " overlaps another link");
+        }
+        Link link = new Link(portName, firstExtension, lastExtension);
+        link.dataLayer.setTimer(timer);
+        link.protocol.setTimer(timer);
+        link.protocol.setCallRecordPipeline(callRecordPipeline);
+        link.protocol.setTariffTable(tariffTable);
+        link.setMetrics(MetricsRegistry.shared());
+        link.dataLayer.setJournal(new OutboundJournal(
+                new File(journalDir, portName.replaceAll("[^A-Za-z0-9]+", "_") + ".journal"),
+                Env.getInt("JOURNAL_SIZE", 1 << 20), Env.getLong("JOURNAL_SYNC_MILLIS", 20)));
+        String traceDir = Env.getString("WIRE_TRACE_DIR", null);
+        if (traceDir != null) {
+            link.trace = new WireTraceRecorder(new File(traceDir, portName.replaceAll("[^A-Za-z0-9]+", "_")
+                    + ".trace"), Env.getInt("WIRE_TRACE_SIZE", 4 << 20));
+            link.serial.setWireTrace(link.trace);
+        }
+        links.add(index, link);
+        return link;
+    }
+
+    public synchronized void start() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(Math.max(1, Math.min(workerThreads, links.size())),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "link-worker-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        callRecordPipeline.start();
+        for (Link link : links) {
+            if (link.connected) {
+                continue;
+            }
+            if (link.trace != null) {
+                try {
+                    link.trace.open();
+                } catch (IOException e) {
+                    log.warn("Could not open wire trace " + link.trace.getFile() + ", link not traced", e);
+                }
+            }
+            link.dataLayer.setExecutor(workers);
+            link.dataLayer.start();
+            try {
+                link.serial.start();
+                link.connected = true;
+                link.protocol.start();
+                log.info("Link {} started", link);
+            } catch (IOException e) {
+                log.error("Could not open " + link.portName + ", link stays down", e);
+                link.dataLayer.stop();
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        for (Link link : links) {
+            link.protocol.stop();
+            link.serial.stop();
+            link.dataLayer.stop();
+            link.connected = false;
+            if (link.trace != null) {
+                link.trace.close();
+            }
+        }
+        callRecordPipeline.stop();
+        if (workers != null) {
+            workers.shutdown();
+            workers = null;
+        }
+    }
+
+    /**
+     * Stops the links for good and releases the PMS client.
+     */
+    public synchronized void close() {
+        stop();
+        if (pmsRestClient instanceof Closeable) {
+            try {
+                ((Closeable) pmsRestClient).close();
+            } catch (IOException e) {
+                log.warn("Could not close the PMS client", e);
+            }
+        }
+    }
+
+    public synchronized List<Link> getLinks() {
+        return Collections.unmodifiableList(new ArrayList<Link>(links));
+    }
+
+    public PMSRestClient getPmsRestClient() {
+        return pmsRestClient;
+    }
+
+    public CallRecordPipeline getCallRecordPipeline() {
+        return callRecordPipeline;
+    }
+
+    public ExtensionDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the link serving the extension, or null if no PBX has it
+     */
+    public synchronized Link route(long extension) {
+        int low = 0;
+        int high = links.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Link link = links.get(mid);
+            if (extension < link.firstExtension) {
+                high = mid - 1;
+            } else if (extension > link.lastExtension) {
+                low = mid + 1;
+            } else {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    public Link route(String extension) {
+        try {
+            return route(Long.parseLong(extension.trim()));
+        } catch (NumberFormatException e) {
+            log.warn("Extension {} is not a number, cannot route it", extension);
+            return null;
+        }
+    }
+
+    /**
+     * Streams the extensions from the PMS and syncs each one with the link serving it as soon as it is
+     * decoded, so the first commands are queued while the rest of the response is still arriving.  See
+     * {@link NEAX7400PmsProtocolImpl#syncExtension}.
+     *
+     * @return the totals, of what was read before the response failed if it did
+     */
+    public NEAX7400PmsProtocolImpl.SyncResult sync() {
+        final int[] counts = new int[3];
+        ExtensionTable extensions = pmsRestClient.getExtensions(new ExtensionCallback() {
+            @Override
+            public void onExtension(long extension, boolean unrestricted, String name) {
+                directory.onExtension(extension, unrestricted, name);
+                Link link = route(extension);
+                if (link == null) {
+                    log.warn("No PBX serves extension {}, not synced", extension);
+                    return;
+                }
+                int sent = link.protocol.syncExtension(extension, unrestricted, name);
+                counts[0]++;
+                counts[1] += sent;
+                counts[2] += 2 - sent;
+            }
+        });
+        if (extensions == null) {
+            log.warn("Extensions from the PMS incomplete, synced {}", counts[0]);
+        }
+        NEAX7400PmsProtocolImpl.SyncResult result = new NEAX7400PmsProtocolImpl.SyncResult(counts[0], counts[1],
+                counts[2]);
+        log.info("Sync: {}", result);
+        return result;
+    }
+
+    /**
+     * Compares what each PBX reported in its status replies with the PMS and corrects the rooms that
+     * drifted, see {@link Reconciler}.
+     *
+     * @return the counts, or null if the PMS did not answer in full
+     */
+    public Reconciler.Result reconcile() {
+        return reconciler.reconcile(getLinks());
+    }
+
+    /* Gauges on the pipeline, its outbox and archive, read when the metrics are */
+    private static void registerPipelineMetrics(final CallRecordPipeline pipeline) {
+        MetricsRegistry registry = MetricsRegistry.shared();
+        registry.gauge("calls.queued", new Gauge() {
+            @Override
+            public long getValue() {
+                return pipeline.getQueued();
+            }
+        });
+        registry.gauge("calls.posted", new Gauge() {
+            @Override
+            public long getValue() {
+                return pipeline.getPosted();
+            }
+        });
+        registry.gauge("calls.deferred", new Gauge() {
+            @Override
+            public long getValue() {
+                return pipeline.getDeferred();
+            }
+        });
+        registry.gauge("calls.dropped", new Gauge() {
+            @Override
+            public long getValue() {
+                return pipeline.getDropped() + pipeline.getFailed();
+            }
+        });
+        registry.gauge("outbox.backlog", new Gauge() {
+            @Override
+            public long getValue() {
+                CallRecordOutbox outbox = pipeline.getOutbox();
+                return outbox == null ? 0 : outbox.getBacklog();
+            }
+        });
+        registry.gauge("outbox.drain.rate", new Gauge() {
+            @Override
+            public long getValue() {
+                CallRecordOutbox outbox = pipeline.getOutbox();
+                return outbox == null ? 0 : Math.round(outbox.getDrainRate());
+            }
+        });
+        registry.gauge("archive.skipped", new Gauge() {
+            @Override
+            public long getValue() {
+                return pipeline.getUnarchived();
+            }
+        });
+        registry.gauge("archive.appended", new Gauge() {
+            @Override
+            public long getValue() {
+                CallArchive archive = pipeline.getArchive();
+                return archive == null ? 0 : archive.getAppended();
+            }
+        });
+    }
+
+    /**
+     * @return false if the extension is not a number of at most {@link PbxCommand#EXTENSION_WIDTH} digits
+     *         or no PBX serves it
+     */
+    public boolean checkIn(String guestName, String extension) {
+        long number = pbxExtension(extension);
+        Link link = route(number, extension, "check in");
+        if (link == null) {
+            return false;
+        }
+        link.protocol.checkIn(guestName, String.valueOf(number));
+        directory.onExtension(number, true, guestName);
+        return true;
+    }
+
+    /**
+     * @return false if the extension is not valid or no PBX serves it, see {@link #checkIn}
+     */
+    public boolean checkOut(String extension) {
+        long number = pbxExtension(extension);
+        Link link = route(number, extension, "check out");
+        if (link == null) {
+            return false;
+        }
+        link.protocol.checkOut(String.valueOf(number));
+        directory.onExtension(number, false, "");
+        return true;
+    }
+
+    /**
+     * @return false if the extension is not valid or no PBX serves it, see {@link #checkIn}
+     */
+    public boolean setName(String extension, String name) {
+        long number = pbxExtension(extension);
+        Link link = route(number, extension, "name");
+        if (link == null) {
+            return false;
+        }
+        link.protocol.setName(String.valueOf(number), name);
+        directory.onName(number, name);
+        return true;
+    }
+
+    /*
+     * The extension from the PMS as a number, -1 if it is not one or is wider than the PBX's extension
+     * field, which would cut it to another room
+     */
+    private static long pbxExtension(String extension) {
+        long number = extension == null ? -1 : ExtensionShadowTable.parseExtension(extension);
+        return number < 0 || String.valueOf(number).length() > PbxCommand.EXTENSION_WIDTH ? -1 : number;
+    }
+
+    /* The link serving the extension, null with a warning if it is not valid or none serves it */
+    private Link route(long number, String extension, String what) {
+        if (number < 0) {
+            log.warn("Extension {} is not a PBX extension, {} dropped", extension, what);
+            return null;
+        }
+        Link link = route(number);
+        if (link == null) {
+            log.warn("No PBX serves extension {}, {} dropped", number, what);
+        }
+        return link;
+    }
+}
@@ -0,0 +1,152 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.DataLayer;
+import in.orangecounty.tel.SerialLayer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory serial line for running the stack without a PBX.
+ * <p/>
+ * Bytes the data layer sends go to the {@link Peer} at the far end, bytes the peer {@link #inject}s are
+ * decoded into frames and handed to the data layer, each direction on its own thread like a real port.
+ * With a baud rate set, every byte is delayed by its time on the wire (10 bits per character) so the
+ * timing matches a real link.
+ */
+public class LoopbackSerialImpl implements SerialLayer {
+    private static final Logger log = LoggerFactory.getLogger(LoopbackSerialImpl.class);
+
+    /**
+     * The far end of the line.
+     */
+    public interface Peer {
+        void onBytes(byte[] data);
+    }
+
+    private DataLayer dataLayer;
+    private Peer peer;
+    private volatile long nanosPerByte = 0;
+    private final BlockingQueue<byte[]> toDataLayer = new LinkedBlockingQueue<byte[]>();
+    private final BlockingQueue<byte[]> toPeer = new LinkedBlockingQueue<byte[]>();
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            if (dataLayer != null) {
+                dataLayer.onMessage(buffer, offset, length);
+            }
+        }
+    });
+    private volatile WireTraceRecorder trace;
+    private Thread receiver;
+    private Thread transmitter;
+
+    @Override
+    public void setDataLayer(DataLayer dataLayer) {
+        this.dataLayer = dataLayer;
+    }
+
+    /**
+     * Records every byte sent and received, null to stop.
+     */
+    public void setWireTrace(WireTraceRecorder trace) {
+        this.trace = trace;
+    }
+
+    public void setPeer(Peer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * @param baudRate line speed to emulate, 0 for no delay
+     */
+    public void setBaudRate(int baudRate) {
+        this.nanosPerByte = baudRate <= 0 ? 0 : TimeUnit.SECONDS.toNanos(10) / baudRate;
+    }
+
+    public synchronized void start() {
+        if (receiver != null) {
+            return;
+        }
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump(toDataLayer, true);
+            }
+        }, "loopback-rx");
+        transmitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump(toPeer, false);
+            }
+        }, "loopback-tx");
+        receiver.setDaemon(true);
+        transmitter.setDaemon(true);
+        receiver.start();
+        transmitter.start();
+    }
+
+    public synchronized void stop() {
+        if (receiver != null) {
+            receiver.interrupt();
+            transmitter.interrupt();
+            receiver = null;
+            transmitter = null;
+        }
+        toDataLayer.clear();
+        toPeer.clear();
+        decoder.reset();
+    }
+
+    @Override
+    public void sendMessage(byte[] message) throws Exception {
+        sendMessage(message, 0, message.length);
+    }
+
+    @Override
+    public void sendMessage(byte[] buffer, int offset, int length) throws Exception {
+        if (transmitter == null) {
+            throw new IOException("Loopback not started.  Call start() before calling sendMessage()");
+        }
+        WireTraceRecorder recorder = trace;
+        if (recorder != null) {
+            recorder.record(WireTraceRecorder.SENT, buffer, offset, length);
+        }
+        toPeer.add(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    /**
+     * Bytes from the far end to the data layer.
+     */
+    public void inject(byte[] data) {
+        toDataLayer.add(data.clone());
+    }
+
+    private void pump(BlockingQueue<byte[]> queue, boolean toData) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                byte[] chunk = queue.take();
+                long delay = nanosPerByte * chunk.length;
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                if (toData) {
+                    WireTraceRecorder recorder = trace;
+                    if (recorder != null) {
+                        recorder.record(WireTraceRecorder.RECEIVED, chunk, 0, chunk.length);
+                    }
+                    decoder.decode(chunk, 0, chunk.length);
+                } else if (peer != null) {
+                    peer.onBytes(chunk);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Loopback stopped");
+        }
+    }
+}
@@ -1,18 +1,18 @@
 package in.orangecounty.tel.impl;
 
+import in.orangecounty.tel.CallRecord;
 import in.orangecounty.tel.DataLayer;
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
 import in.orangecounty.tel.ProtocolLayerListener;
-import org.apache.commons.lang.StringUtils;
+import in.orangecounty.tel.metrics.Counter;
+import in.orangecounty.tel.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Calendar;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * PMS Protocol
@@ -20,13 +20,114 @@ import java.util.concurrent.TimeUnit;
  */
 public class NEAX7400PmsProtocolImpl implements ProtocolLayerListener {
     private static final Logger log = LoggerFactory.getLogger(NEAX7400PmsProtocolImpl.class);
-    private static final String STATUS_ENQUIRY = "1!L7007F  ";
-    private static final int NAME_LEN = 15;
-    private static final int EXT_LEN = 4;
+    /* Start of the name or level in a status reply, after the function, extension and two spaces */
+    private static final int REPLY_FIELD = 14;
+
+    /**
+     * Outcome of a {@link #sync(Map)}.
+     */
+    public static final class SyncResult {
+        private final int extensions;
+        private final int commandsSent;
+        private final int commandsSaved;
+
+        public SyncResult(int extensions, int commandsSent, int commandsSaved) {
+            this.extensions = extensions;
+            this.commandsSent = commandsSent;
+            this.commandsSaved = commandsSaved;
+        }
+
+        public int getExtensions() {
+            return extensions;
+        }
+
+        public int getCommandsSent() {
+            return commandsSent;
+        }
+
+        /**
+         * @return commands not sent because the PBX already had the value
+         */
+        public int getCommandsSaved() {
+            return commandsSaved;
+        }
+
+        public SyncResult plus(SyncResult other) {
+            return new SyncResult(extensions + other.extensions, commandsSent + other.commandsSent,
+                    commandsSaved + other.commandsSaved);
+        }
+
+        @Override
+        public String toString() {
+            return extensions + " extensions, " + commandsSent + " commands sent, " + commandsSaved + " saved";
+        }
+    }
+
     DataLayer dataLayer;
 
-    ScheduledExecutorService scheduler;
-    ScheduledFuture statusFuture;
+    private HashedWheelTimer timer;
+    private CallRecordPipeline callRecordPipeline;
+    private volatile TariffTable tariffTable;
+    private final CallRecordParser callRecordParser = new CallRecordParser();
+    private final ExtensionShadowTable shadow = new ExtensionShadowTable();
+    /* What the PBX itself reported, from its status replies */
+    private final ExtensionShadowTable reported = new ExtensionShadowTable();
+    private final AtomicLong commandsSaved = new AtomicLong();
+    private Counter callRecords;
+    private Counter malformedCallRecords;
+    private Counter guestCommands;
+    private Counter syncCommands;
+    private Counter statusReplies;
+    private volatile boolean started = false;
+    private final HashedWheelTimer.Timeout statusTimer = new HashedWheelTimer.Timeout() {
+        @Override
+        protected void expired(long tag) {
+            if (started) {
+                sendCommand(PbxCommand.statusEnquiry(), Priority.STATUS);
+                timer.schedule(this, 1l, TimeUnit.MINUTES);
+            }
+        }
+    };
+
+    public NEAX7400PmsProtocolImpl() {
+        setMetrics(new MetricsRegistry(), "link");
+    }
+
+    public void setDataLayer(DataLayer dataLayer) {
+        this.dataLayer = dataLayer;
+    }
+
+    /**
+     * Timer for the status enquiry, {@link HashedWheelTimer#shared()} unless set before {@link #start()}.
+     */
+    public void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Where SMDR records received from the PBX go.  Without one they are only logged.
+     */
+    public void setCallRecordPipeline(CallRecordPipeline callRecordPipeline) {
+        this.callRecordPipeline = callRecordPipeline;
+    }
+
+    /**
+     * Prices call records before they go to the pipeline, null to leave them for the PMS to rate.
+     */
+    public void setTariffTable(TariffTable tariffTable) {
+        this.tariffTable = tariffTable;
+    }
+
+    /**
+     * Registers the protocol's counters under the prefix, see {@link DataLayerImpl#setMetrics}.
+     */
+    public void setMetrics(MetricsRegistry registry, String prefix) {
+        callRecords = registry.counter(prefix + ".calls.received");
+        malformedCallRecords = registry.counter(prefix + ".calls.malformed");
+        guestCommands = registry.counter(prefix + ".commands.guest");
+        syncCommands = registry.counter(prefix + ".commands.sync");
+        statusReplies = registry.counter(prefix + ".status.replies");
+    }
 
     public void checkIn(String guestName, String extension) {
         setRestriction(extension, "0");
@@ -39,148 +140,186 @@ public class NEAX7400PmsProtocolImpl implements ProtocolLayerListener {
     }
 
 
-    private void setExtensionProperies(Map<Long, Map<String, String>> extensions) {
-//        System.out.println("\n\n extensions  --- "+extensions);
-        String restrictionLevel = "0";
-        String restrictionStatus = "";
+    /**
+     * Brings the PBX in line with the extensions from the PMS, sending only the names and restrictions
+     * that differ from what the PBX was last told.  After a restart nothing is known and the first sync
+     * sends everything.  The commands go in the {@link Priority#BULK} lane.
+     *
+     * @param extensions by extension number, a single entry of "true" (no restriction) or "false" (outward
+     *                   restriction) to the guest name
+     */
+    public SyncResult sync(Map<Long, Map<String, String>> extensions) {
+        int sent = 0;
+        int pairs = 0;
         for (Map.Entry<Long, Map<String, String>> outerEntry : extensions.entrySet()) {
             for (Map.Entry<String, String> innerEntry : outerEntry.getValue().entrySet()) {
-
-                restrictionStatus = innerEntry.getKey();
-                if (innerEntry.getKey().trim().equals("true")) {
-                    restrictionLevel = "0";
-                } else if (restrictionStatus.trim().equals("false")) {
-                    restrictionLevel = "1";
-                }
-                setName(outerEntry.getKey().toString(), innerEntry.getValue());
-                setRestriction(outerEntry.getKey().toString(), restrictionLevel);
+                sent += syncExtension(outerEntry.getKey(), innerEntry.getKey().trim().equals("true"),
+                        innerEntry.getValue());
+                pairs++;
             }
         }
+        SyncResult result = new SyncResult(extensions.size(), sent, pairs * 2 - sent);
+        log.info("Sync: {}", result);
+        return result;
     }
 
+    /**
+     * Syncs one extension as it arrives from the PMS, see {@link #sync(Map)}.
+     *
+     * @param unrestricted true for no restriction, false for outward restriction
+     * @return the commands sent, 0 to 2
+     */
+    public int syncExtension(long extension, boolean unrestricted, String name) {
+        int sent = 0;
+        if (shadow.updateName(extension, name)) {
+            sendCommand(PbxCommand.name(String.valueOf(extension), name), Priority.BULK);
+            sent++;
+            syncCommands.inc();
+        }
+        if (shadow.updateRestriction(extension, unrestricted ? 0 : 1)) {
+            sendCommand(PbxCommand.restriction(String.valueOf(extension), unrestricted ? "0" : "1"), Priority.BULK);
+            sent++;
+            syncCommands.inc();
+        }
+        commandsSaved.addAndGet(2 - sent);
+        return sent;
+    }
 
-    /* 0 - No restriction
-    *  1 - Outward Restriction */
-    public void setRestriction(String extension, String status) {
-        log.info("Set restriction " + extension + " to " + status);
-        StringBuilder sb = new StringBuilder("1!L15141");
-        String ext = modifyExtension(extension);
-        String st = status.trim();
-        sb.append(fixWidth(extension, EXT_LEN));
-        sb.append("  ");
-        sb.append(st);
-        sb.append("  ");
-        sendMessage(sb.toString());
+    /**
+     * Forgets what the PBX was told, the next sync sends every extension.  For when the PBX was reset or
+     * changed behind our back.
+     */
+    public void clearShadow() {
+        shadow.clear();
     }
 
-    public void setName(String extension, String name) {
-        log.info("set name " + extension + " to " + name);
-        String extensionName = modifyName(name);
-        String ext = modifyExtension(extension);
-        StringBuilder sb = new StringBuilder("1!L21266");
-        sb.append(ext);
-        sb.append("  ");
-        sb.append(extensionName);
-        sendMessage(sb.toString());
+    /**
+     * Corrects an extension the PBX reported differently from the PMS, see {@link Reconciler}.  The commands go
+     * in the {@link Priority#BULK} lane whatever the shadow holds.
+     *
+     * @return the commands sent, 0 to 2
+     */
+    public int correctExtension(long extension, boolean unrestricted, String name, boolean fixName,
+                                boolean fixRestriction) {
+        int sent = 0;
+        if (fixName) {
+            shadow.updateName(extension, name);
+            sendCommand(PbxCommand.name(String.valueOf(extension), name), Priority.BULK);
+            sent++;
+        }
+        if (fixRestriction) {
+            shadow.updateRestriction(extension, unrestricted ? 0 : 1);
+            sendCommand(PbxCommand.restriction(String.valueOf(extension), unrestricted ? "0" : "1"), Priority.BULK);
+            sent++;
+        }
+        syncCommands.add(sent);
+        return sent;
     }
 
-    private String modifyExtension(String extension) {
-        return fixWidth(extension, 4);
+    /**
+     * @return the names and restrictions as the PBX last reported them in its status replies
+     */
+    public ExtensionShadowTable.Snapshot getReportedStatus() {
+        return reported.snapshot();
     }
 
-    private String modifyName(String name) {
-        return fixWidth(name, 15);
+    /**
+     * @return commands all syncs so far did not need to send
+     */
+    public long getCommandsSaved() {
+        return commandsSaved.get();
     }
 
-    private String fixWidth(String string, int width){
-        return StringUtils.left(StringUtils.rightPad(string, width), width);
+
+    /* 0 - No restriction
+    *  1 - Outward Restriction */
+    public void setRestriction(String extension, String status) {
+        log.info("Set restriction {} to {}", extension, status);
+        long number = ExtensionShadowTable.parseExtension(extension);
+        if (number >= 0) {
+            String level = status.trim();
+            shadow.updateRestriction(number, level.length() == 1 ? level.charAt(0) - '0' : -1);
+        }
+        guestCommands.inc();
+        sendCommand(PbxCommand.restriction(extension, status), Priority.INTERACTIVE);
     }
 
-    private void sendMessage(String message) {
+    public void setName(String extension, String name) {
+        log.info("Set name {} to {}", extension, name);
+        long number = ExtensionShadowTable.parseExtension(extension);
+        if (number >= 0) {
+            shadow.updateName(number, name);
+        }
+        guestCommands.inc();
+        sendCommand(PbxCommand.name(extension, name), Priority.INTERACTIVE);
+    }
+
+    private void sendCommand(PbxCommand command, Priority priority) {
         if (dataLayer != null) {
-            dataLayer.sendMessage(message);
+            dataLayer.sendCommand(command, priority);
         } else {
-            log.warn("Data Layer not Set. Could not send Message : " + message);
+            log.warn("Data Layer not Set. Could not send Message : {}", command);
         }
     }
 
     public void start() {
-        scheduler = Executors.newScheduledThreadPool(1);
-        statusFuture = scheduler.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                sendMessage(STATUS_ENQUIRY);
-            }
-        }, 1l, 1l, TimeUnit.MINUTES);
+        if (timer == null) {
+            timer = HashedWheelTimer.shared();
+        }
+        started = true;
+        timer.schedule(statusTimer, 1l, TimeUnit.MINUTES);
     }
 
     public void stop() {
-        if (statusFuture != null) {
-            statusFuture.cancel(true);
-            statusFuture = null;
-            scheduler = null;
+        started = false;
+        if (timer != null) {
+            timer.cancel(statusTimer);
         }
     }
 
-    public Map<String, Map<String, String>> parseCallDetails(String message) {
-        Calendar cal = Calendar.getInstance();
-        Map<String, Map<String, String>> map = new HashMap<String, Map<String, String>>();
-        Map<String, String> callDetailsMap = new HashMap<String, String>();
-        String startTime = "";
-        cal.set(Calendar.HOUR_OF_DAY, Integer.parseInt(message.substring(28, 30)));
-        cal.set(Calendar.MINUTE, Integer.parseInt(message.substring(30, 32)));
-        cal.set(Calendar.SECOND, Integer.parseInt(message.substring(32, 34)));
-        cal.set(Calendar.MILLISECOND, 0);
-
-        String stationNumber, routeNumber, trunkNumber, subscriberNumber, hour, minute, second, duration;
-        stationNumber = message.substring(0, 4);
-        routeNumber = message.substring(6, 9);
-        trunkNumber = message.substring(9, 12);
-        subscriberNumber = message.substring(12, 28);
-        hour = message.substring(28, 30);
-        minute = message.substring(30, 32);
-        second = message.substring(32, 34);
-        duration = message.substring(34, 39);
-
-        startTime = message.substring(28, 30) + ":" + message.substring(30, 32) + ":" + message.substring(32, 34);
-
-        if (Calendar.getInstance().getTime().before(cal.getTime())) {
-            cal.add(Calendar.DATE, -1);
+    @Override
+    public void onMessage(String s) {
+        log.debug("Received {}", s);
+        if (isCallRecord(s)) {
+            CallRecord record = callRecordParser.parse(s);
+            callRecords.inc();
+            if (record == null) {
+                malformedCallRecords.inc();
+                log.warn("Malformed call record {}", s);
+            } else if (callRecordPipeline != null) {
+                TariffTable tariff = tariffTable;
+                callRecordPipeline.offer(tariff == null ? record : tariff.rate(record));
+            }
+        } else if (s.length() >= REPLY_FIELD) {
+            onStatusReply(s);
         }
-
-
-        callDetailsMap.put("CALLED_NO", subscriberNumber);
-
-        callDetailsMap.put("START_TIME", startTime);
-
-        callDetailsMap.put("CALL_DURATION", duration);
-        callDetailsMap.put("DATE_OF_CALL", cal.getTime().toString() + " " + startTime);
-
-        map.put(stationNumber, callDetailsMap);
-
-//        System.out.println("Station Number"+stationNumber);
-//        System.out.println("Route Number"+routeNumber);
-//        System.out.println("Trunk Number"+trunkNumber);
-//        System.out.println("Subscriber Number"+subscriberNumber);
-//        System.out.println("Hour"+hour);
-//        System.out.println("Minute"+minute);
-//        System.out.println("Second"+second);
-//        System.out.println("Duration"+duration);
-//        System.out.println("Start Date "+cal.getTime());
-//
-//        System.out.println("Modified date "+cal.getTime());
-//        System.out.println("Current date "+new Date());
-//        System.out.println("Compare "+cal.getTime().equals(new Date()));
-
-
-        return map;
-
-
     }
 
+    /*
+     * The PBX answers a status enquiry with the state of its extensions in the layouts we set them with,
+     * 1!L15141 EEEE__R__ and 1!L21266 EEEE__NNNNNNNNNNNNNNN.  Anything else is only logged.
+     */
+    private void onStatusReply(String s) {
+        boolean name = s.startsWith(PbxCommand.Function.SET_NAME.getPrefix());
+        if (!name && !s.startsWith(PbxCommand.Function.SET_RESTRICTION.getPrefix())) {
+            return;
+        }
+        long extension = ExtensionShadowTable.parseExtension(s.substring(8, 8 + PbxCommand.EXTENSION_WIDTH));
+        if (extension < 0) {
+            log.warn("Status reply for no extension {}", s);
+        } else if (name) {
+            reported.updateName(extension, s.substring(REPLY_FIELD, Math.min(s.length(),
+                    REPLY_FIELD + PbxCommand.NAME_WIDTH)));
+            statusReplies.inc();
+        } else if (s.length() > REPLY_FIELD) {
+            char level = s.charAt(REPLY_FIELD);
+            reported.updateRestriction(extension, level >= '0' && level <= '9' ? level - '0' : -1);
+            statusReplies.inc();
+        }
+    }
 
-    @Override
-    public void onMessage(String s) {
-        log.debug(s);
+    /* Replies to our commands start with the 1! address, SMDR output is the fixed width record */
+    static boolean isCallRecord(String message) {
+        return message.length() >= CallRecordParser.RECORD_LENGTH && !message.startsWith("1!");
     }
 }
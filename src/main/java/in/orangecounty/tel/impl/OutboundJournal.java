@@ -0,0 +1,382 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory mapped write-ahead log of the commands queued on a link.
+ * <p/>
+ * Every command is appended before it is sent and marked complete when the PBX acknowledges it.  On
+ * {@link #open()} the file is scanned and the commands never completed are returned for replay.  A record
+ * is its length, type, sequence number, payload and a CRC32, followed by a zero length marker that the
+ * next append overwrites, so a torn write at the tail is recognised and ignored.
+ * <p/>
+ * Appends are plain writes into the mapping.  A sync thread forces the mapping to disk every
+ * syncMillis when something was written, committing all appends of that interval with one fsync.  The
+ * page cache survives a crash of the process, a power cut loses at most the last interval.  When every
+ * command is complete the journal rewinds to the start; when it fills up with commands still pending
+ * they are copied to a fresh file, which is grown if needed, and renamed over the old one.
+ * <p/>
+ * Thread safe.  The link's event loop appends and completes while a stop may close the journal from another
+ * thread, an append after the close returns 0 and a completion after it is ignored, so the command is
+ * replayed once more.
+ */
+public class OutboundJournal {
+    private static final Logger log = LoggerFactory.getLogger(OutboundJournal.class);
+    private static final int MAGIC = 0x4e454158;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final byte APPEND = 1;
+    private static final byte COMPLETE = 2;
+    /* type and sequence number */
+    private static final int RECORD_HEADER = 9;
+    /* length before, CRC and the end marker after */
+    private static final int RECORD_OVERHEAD = 12;
+    private static final PbxCommand.Function[] FUNCTIONS = PbxCommand.Function.values();
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * A command read back from the journal.
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final PbxCommand command;
+        private final Priority priority;
+
+        Entry(long sequence, PbxCommand command, Priority priority) {
+            this.sequence = sequence;
+            this.command = command;
+            this.priority = priority;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public PbxCommand getCommand() {
+            return command;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+    }
+
+    private final File file;
+    private final int initialSize;
+    private final long syncMillis;
+    private final byte[] scratch = new byte[4096];
+    private final ByteBuffer record = ByteBuffer.wrap(scratch);
+    private final byte[] scanned = new byte[scratch.length];
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private volatile MappedByteBuffer mapped;
+    private volatile boolean dirty = false;
+    private Thread syncer;
+    private int position;
+    private long nextSequence = 1;
+    private int pending = 0;
+
+    /**
+     * @param initialSize size of the mapping in bytes, it grows when pending commands fill it
+     * @param syncMillis  interval of the group commit
+     */
+    public OutboundJournal(File file, int initialSize, long syncMillis) {
+        this.file = file;
+        this.initialSize = initialSize;
+        this.syncMillis = syncMillis;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Maps the file, creating it if needed, and starts the sync thread.
+     *
+     * @return the commands appended but never completed, oldest first
+     */
+    public synchronized List<Entry> open() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Journal " + file + " is already open");
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        map(initialSize);
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            mapped.putInt(HEADER, 0);
+        }
+        Map<Long, Integer> live = scan();
+        List<Entry> entries = new ArrayList<Entry>(live.size());
+        for (Map.Entry<Long, Integer> entry : live.entrySet()) {
+            entries.add(readEntry(entry.getKey(), entry.getValue()));
+            nextSequence = Math.max(nextSequence, entry.getKey() + 1);
+        }
+        compact(live, 0);
+        if (!entries.isEmpty()) {
+            log.info("Journal {} has {} unacknowledged commands to replay", file, entries.size());
+        }
+        syncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "journal-sync-" + file.getName());
+        syncer.setDaemon(true);
+        syncer.start();
+        return entries;
+    }
+
+    /**
+     * Records a command about to be sent and the lane it was queued in.  The command fits in a frame,
+     * {@link DataLayerImpl#sendCommand(PbxCommand, Priority)} refuses any that does not.
+     *
+     * @return its sequence number for {@link #complete}, or 0 if the journal is not open
+     */
+    public synchronized long append(PbxCommand command, Priority priority) throws IOException {
+        if (mapped == null) {
+            return 0;
+        }
+        long sequence = nextSequence++;
+        record.clear();
+        /* Function in the low bits and lane in the high bits of one byte, files without a lane read as INTERACTIVE */
+        record.put(APPEND).putLong(sequence).put((byte) (command.getFunction().ordinal() | priority.ordinal() << 4));
+        putString(command.getExtension());
+        putString(command.getArgument());
+        write(record.position());
+        pending++;
+        return sequence;
+    }
+
+    /**
+     * Records that the PBX acknowledged a command.
+     */
+    public synchronized void complete(long sequence) throws IOException {
+        if (mapped == null || sequence <= 0) {
+            return;
+        }
+        if (pending <= 1) {
+            /* Nothing left to replay, start over at the top instead of appending the completion */
+            mapped.putInt(HEADER, 0);
+            position = HEADER;
+            pending = 0;
+            dirty = true;
+            return;
+        }
+        record.clear();
+        record.put(COMPLETE).putLong(sequence);
+        write(record.position());
+        pending--;
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Forces what was written and unmaps the file.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        syncer.interrupt();
+        try {
+            syncer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        syncer = null;
+        mapped.force();
+        mapped = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Could not close journal " + file, e);
+        }
+        channel = null;
+    }
+
+    private void syncLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(syncMillis);
+                MappedByteBuffer buffer = mapped;
+                if (dirty && buffer != null) {
+                    dirty = false;
+                    buffer.force();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Journal sync for {} stopped", file);
+        }
+    }
+
+    private void putString(String value) {
+        record.putShort((short) value.length());
+        for (int i = 0; i < value.length(); i++) {
+            record.putChar(value.charAt(i));
+        }
+    }
+
+    /* Copies the record in scratch to the tail, making room first if it does not fit */
+    private void write(int length) throws IOException {
+        if (position + length + RECORD_OVERHEAD > mapped.capacity()) {
+            compact(scan(), length + RECORD_OVERHEAD);
+        }
+        crc.reset();
+        crc.update(scratch, 0, length);
+        MappedByteBuffer buffer = mapped;
+        buffer.putInt(position + 4 + length, (int) crc.getValue());
+        buffer.putInt(position + 8 + length, 0);
+        buffer.position(position + 4);
+        buffer.put(scratch, 0, length);
+        /* The length goes in last, the record is not seen before it is whole */
+        buffer.putInt(position, length);
+        position += 8 + length;
+        dirty = true;
+    }
+
+    /*
+     * Reads every record from the top up to the end marker or the first damaged record, leaving position
+     * after the last good one.  Returns the offsets of the appends not completed, by sequence number.
+     */
+    private Map<Long, Integer> scan() {
+        Map<Long, Integer> live = new LinkedHashMap<Long, Integer>();
+        MappedByteBuffer buffer = mapped;
+        int offset = HEADER;
+        while (offset + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length < RECORD_HEADER || offset + 8 + length > buffer.capacity()) {
+                break;
+            }
+            if (length > scanned.length) {
+                log.warn("Journal {} damaged at offset {}, ignoring the rest", file, offset);
+                break;
+            }
+            buffer.position(offset + 4);
+            buffer.get(scanned, 0, length);
+            crc.reset();
+            crc.update(scanned, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4 + length)) {
+                log.warn("Journal {} damaged at offset {}, ignoring the rest", file, offset);
+                break;
+            }
+            long sequence = buffer.getLong(offset + 5);
+            if (scanned[0] == APPEND) {
+                live.put(sequence, offset);
+            } else if (scanned[0] == COMPLETE) {
+                live.remove(sequence);
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            offset += 8 + length;
+        }
+        position = offset;
+        pending = live.size();
+        return live;
+    }
+
+    private Entry readEntry(long sequence, int offset) {
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position(offset + 4 + RECORD_HEADER);
+        int kind = buffer.get();
+        String extension = getString(buffer);
+        String argument = getString(buffer);
+        PbxCommand command;
+        switch (FUNCTIONS[kind & 0x0F]) {
+            case SET_RESTRICTION:
+                command = PbxCommand.restriction(extension, argument);
+                break;
+            case SET_NAME:
+                command = PbxCommand.name(extension, argument);
+                break;
+            case STATUS_ENQUIRY:
+                command = PbxCommand.statusEnquiry();
+                break;
+            default:
+                command = PbxCommand.raw(argument);
+        }
+        return new Entry(sequence, command, PRIORITIES[(kind >> 4) & 0x0F]);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    /*
+     * Rewrites the journal with only the live appends into a new file, at least twice the size they need
+     * plus room for the next record, and renames it over the old one.
+     */
+    private void compact(Map<Long, Integer> live, int needed) throws IOException {
+        int liveBytes = 0;
+        for (Integer offset : live.values()) {
+            liveBytes += 8 + mapped.getInt(offset);
+        }
+        if (needed == 0 && position == HEADER + liveBytes) {
+            /* Nothing completed to drop */
+            return;
+        }
+        int size = Math.max(mapped.capacity(), 2 * (HEADER + liveBytes + needed + 4));
+        File compacted = new File(file.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+            out.setLength(size);
+            ByteBuffer copy = ByteBuffer.allocate(HEADER + liveBytes + 4);
+            copy.putInt(MAGIC).putInt(VERSION);
+            for (Integer offset : live.values()) {
+                ByteBuffer source = mapped.duplicate();
+                source.position(offset);
+                source.limit(offset + 8 + mapped.getInt(offset));
+                copy.put(source);
+            }
+            copy.putInt(0);
+            copy.flip();
+            out.getChannel().write(copy, 0);
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        map(size);
+        position = HEADER + liveBytes;
+        pending = live.size();
+        log.debug("Compacted journal {} to {} pending commands in {} bytes", file, pending, size);
+    }
+
+    private void map(int size) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    }
+}
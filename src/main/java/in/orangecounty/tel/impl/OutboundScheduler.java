@@ -0,0 +1,312 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outbound queue of a link, one FIFO lane per {@link Priority}.
+ * <p/>
+ * Lanes are served by weighted round robin: each lane may send as many commands as its weight before
+ * the lanes behind it get a turn, then the credits are refilled.  With the default weights of 8, 1 and 2
+ * a check-in waits behind at most two bulk updates and a status enquiry, and a bulk sync still gets two
+ * of every eleven frames while check-ins keep coming.
+ * <p/>
+ * A name or restriction queued for an extension that already has one of the same function waiting
+ * replaces it where it stands, only the last state of a room matters.  If the new command is in a
+ * higher lane the entry moves there.  The waiting entries are found through an index on extension and
+ * function and the lanes are linked through the entries, so this is constant time.  The command being
+ * sent is not replaced, the new one queues behind it.
+ * <p/>
+ * The command being sent stays {@link #current()} until it is {@link #complete()}d, so a session that
+ * fails resends it first.  Depth and wait time from queueing to the first transmission are kept per lane
+ * and may be read from any thread; everything else belongs to the link's event loop.
+ */
+public class OutboundScheduler {
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * A queued command and its journal sequence number, 0 if not journaled.
+     */
+    public static final class Entry {
+        PbxCommand command;
+        Priority priority;
+        long sequence;
+        final long queued = System.nanoTime();
+        final Long key;
+        private Entry prev;
+        private Entry next;
+
+        Entry(PbxCommand command, Priority priority, long sequence, Long key) {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.key = key;
+        }
+
+        public PbxCommand getCommand() {
+            return command;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    /**
+     * Counters of one lane.
+     */
+    public static final class LaneStats {
+        private volatile int depth;
+        private volatile long sent;
+        private volatile long coalesced;
+        private volatile long totalWaitNanos;
+        private volatile long maxWaitNanos;
+
+        /**
+         * @return commands queued in the lane, not counting one being sent
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return commands taken from the lane for sending
+         */
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return commands that replaced one still waiting in this lane, or moved it here
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        public double getMeanWaitMillis() {
+            long count = sent;
+            return count == 0 ? 0 : totalWaitNanos / 1e6 / count;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("depth %d, sent %d, coalesced %d, wait mean %.0f ms max %.0f ms", depth, sent,
+                    coalesced, getMeanWaitMillis(), getMaxWaitMillis());
+        }
+    }
+
+    private final int[] weights;
+    private final int[] credits;
+    /* Head and tail of each lane */
+    private final Entry[] heads;
+    private final Entry[] tails;
+    private final int[] sizes;
+    private final LaneStats[] stats;
+    /* Waiting names and restrictions by extension and function */
+    private final Map<Long, Entry> waiting = new HashMap<Long, Entry>();
+    private Entry current;
+
+    public OutboundScheduler() {
+        this(8, 1, 2);
+    }
+
+    /**
+     * @param weights commands per round for each lane, in {@link Priority} order
+     */
+    public OutboundScheduler(int... weights) {
+        if (weights.length != PRIORITIES.length) {
+            throw new IllegalArgumentException("One weight per lane expected, got " + weights.length);
+        }
+        this.weights = weights.clone();
+        this.credits = weights.clone();
+        this.heads = new Entry[PRIORITIES.length];
+        this.tails = new Entry[PRIORITIES.length];
+        this.sizes = new int[PRIORITIES.length];
+        this.stats = new LaneStats[PRIORITIES.length];
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("Weight of " + PRIORITIES[i] + " must be at least 1");
+            }
+            stats[i] = new LaneStats();
+        }
+    }
+
+    /**
+     * Queues a command, replacing a waiting one for the same extension and function.
+     *
+     * @return the journal sequence number of the command replaced, 0 if none was or it was not journaled
+     */
+    public long add(PbxCommand command, Priority priority, long sequence) {
+        Long key = key(command);
+        Entry entry = key == null ? null : waiting.get(key);
+        if (entry == null) {
+            entry = new Entry(command, priority, sequence, key);
+            if (key != null) {
+                waiting.put(key, entry);
+            }
+            link(entry);
+            return 0;
+        }
+        long replaced = entry.sequence;
+        entry.command = command;
+        entry.sequence = sequence;
+        if (priority.ordinal() < entry.priority.ordinal()) {
+            unlink(entry);
+            entry.priority = priority;
+            link(entry);
+        }
+        stats[entry.priority.ordinal()].coalesced++;
+        return replaced;
+    }
+
+    /**
+     * @return the command being sent, taking the next one from the lanes if there is none
+     */
+    public Entry current() {
+        if (current == null) {
+            current = take();
+        }
+        return current;
+    }
+
+    /**
+     * The command being sent was acknowledged.
+     *
+     * @return it, or null if there was none
+     */
+    public Entry complete() {
+        Entry done = current;
+        current = null;
+        return done;
+    }
+
+    public boolean isEmpty() {
+        if (current != null) {
+            return false;
+        }
+        for (int size : sizes) {
+            if (size > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes every queued command out, the one being sent first and then each lane in order.
+     */
+    public List<Entry> drain() {
+        List<Entry> drained = new ArrayList<Entry>();
+        if (current != null) {
+            drained.add(current);
+            current = null;
+        }
+        waiting.clear();
+        for (int i = 0; i < heads.length; i++) {
+            for (Entry entry = heads[i]; entry != null; entry = entry.next) {
+                drained.add(entry);
+            }
+            heads[i] = null;
+            tails[i] = null;
+            sizes[i] = 0;
+            stats[i].depth = 0;
+            credits[i] = weights[i];
+        }
+        return drained;
+    }
+
+    public LaneStats getStats(Priority priority) {
+        return stats[priority.ordinal()];
+    }
+
+    private Entry take() {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < heads.length; i++) {
+                if (credits[i] > 0 && heads[i] != null) {
+                    credits[i]--;
+                    return taken(i, heads[i]);
+                }
+            }
+            /* Every lane with work has used its turn */
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+        return null;
+    }
+
+    private Entry taken(int lane, Entry entry) {
+        unlink(entry);
+        if (entry.key != null) {
+            waiting.remove(entry.key);
+        }
+        LaneStats laneStats = stats[lane];
+        long wait = System.nanoTime() - entry.queued;
+        laneStats.sent++;
+        laneStats.totalWaitNanos += wait;
+        if (wait > laneStats.maxWaitNanos) {
+            laneStats.maxWaitNanos = wait;
+        }
+        return entry;
+    }
+
+    private void link(Entry entry) {
+        int lane = entry.priority.ordinal();
+        entry.prev = tails[lane];
+        entry.next = null;
+        if (tails[lane] == null) {
+            heads[lane] = entry;
+        } else {
+            tails[lane].next = entry;
+        }
+        tails[lane] = entry;
+        stats[lane].depth = ++sizes[lane];
+    }
+
+    private void unlink(Entry entry) {
+        int lane = entry.priority.ordinal();
+        if (entry.prev == null) {
+            heads[lane] = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            tails[lane] = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        stats[lane].depth = --sizes[lane];
+    }
+
+    /* Extension and function of a name or restriction, null for commands that are never replaced */
+    private static Long key(PbxCommand command) {
+        PbxCommand.Function function = command.getFunction();
+        if (function != PbxCommand.Function.SET_NAME && function != PbxCommand.Function.SET_RESTRICTION) {
+            return null;
+        }
+        long extension = ExtensionShadowTable.parseExtension(command.getExtension());
+        return extension < 0 ? null : extension * 4 + function.ordinal();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            text.append(i == 0 ? "" : ", ").append(PRIORITIES[i]).append(' ').append(stats[i].depth);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package in.orangecounty.tel.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Preallocated ring of received bytes sitting between the serial port and the {@link FrameDecoder}.
+ * <p/>
+ * One thread fills it straight from the port's InputStream and one thread drains it into the decoder,
+ * so the receive path reuses the same memory for the life of the link instead of allocating a buffer
+ * per serial event.
+ * <p/>
+ * A ring can also carry whole frames between two threads with {@link #offerFrame} and
+ * {@link #pollFrame}; a given ring must be used either for raw bytes or for frames, not both.
+ */
+public class ReceiveRing {
+    private final byte[] buffer;
+    private final int mask;
+    /* Only written by the consumer */
+    private volatile long readPosition = 0;
+    /* Only written by the producer */
+    private volatile long writePosition = 0;
+
+    /**
+     * @param capacity size of the ring, rounded up to a power of two
+     */
+    public ReceiveRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Reads whatever the stream has ready into the free space of the ring without blocking on a full ring.
+     *
+     * @return the number of bytes read, 0 if the ring is full or the stream had nothing, -1 at end of stream
+     */
+    public int readFrom(InputStream in) throws IOException {
+        long write = writePosition;
+        int free = buffer.length - (int) (write - readPosition);
+        if (free == 0) {
+            return 0;
+        }
+        int index = (int) (write & mask);
+        int contiguous = Math.min(free, buffer.length - index);
+        int ready = in.available();
+        if (ready <= 0) {
+            return 0;
+        }
+        int read = in.read(buffer, index, Math.min(contiguous, ready));
+        if (read > 0) {
+            writePosition = write + read;
+        }
+        return read;
+    }
+
+    /**
+     * Copies bytes into the ring, used by producers that are not streams.
+     *
+     * @return the number of bytes that fitted
+     */
+    public int write(byte[] data, int offset, int length) {
+        long write = writePosition;
+        int count = Math.min(length, buffer.length - (int) (write - readPosition));
+        for (int i = 0; i < count; i++) {
+            buffer[(int) ((write + i) & mask)] = data[offset + i];
+        }
+        writePosition = write + count;
+        return count;
+    }
+
+    /**
+     * Feeds every byte currently in the ring to the decoder.
+     *
+     * @return the number of bytes consumed
+     */
+    public int drainTo(FrameDecoder decoder) {
+        return drainTo(decoder, null);
+    }
+
+    /**
+     * Feeds every byte currently in the ring to the decoder, recording it in the trace first.
+     *
+     * @param trace may be null
+     * @return the number of bytes consumed
+     */
+    public int drainTo(FrameDecoder decoder, WireTraceRecorder trace) {
+        long read = readPosition;
+        int count = (int) (writePosition - read);
+        int remaining = count;
+        while (remaining > 0) {
+            int index = (int) (read & mask);
+            int chunk = Math.min(remaining, buffer.length - index);
+            if (trace != null) {
+                trace.record(WireTraceRecorder.RECEIVED, buffer, index, chunk);
+            }
+            decoder.decode(buffer, index, chunk);
+            read += chunk;
+            remaining -= chunk;
+            readPosition = read;
+        }
+        return count;
+    }
+
+    /**
+     * Appends a length prefixed frame, either completely or not at all.
+     *
+     * @return false if there is not enough free space for the frame
+     */
+    public boolean offerFrame(byte[] data, int offset, int length) {
+        if (length > 0xFFFF || length + 2 > buffer.length - available()) {
+            return false;
+        }
+        long write = writePosition;
+        buffer[(int) (write & mask)] = (byte) (length >>> 8);
+        buffer[(int) ((write + 1) & mask)] = (byte) length;
+        for (int i = 0; i < length; i++) {
+            buffer[(int) ((write + 2 + i) & mask)] = data[offset + i];
+        }
+        writePosition = write + 2 + length;
+        return true;
+    }
+
+    /**
+     * Removes the oldest frame written by {@link #offerFrame} and copies it into {@code destination}.
+     *
+     * @return the length of the frame, or -1 if the ring is empty
+     */
+    public int pollFrame(byte[] destination) {
+        long read = readPosition;
+        if (writePosition == read) {
+            return -1;
+        }
+        int length = ((buffer[(int) (read & mask)] & 0xFF) << 8) | (buffer[(int) ((read + 1) & mask)] & 0xFF);
+        if (length > destination.length) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes does not fit the destination");
+        }
+        for (int i = 0; i < length; i++) {
+            destination[i] = buffer[(int) ((read + 2 + i) & mask)];
+        }
+        readPosition = read + 2 + length;
+        return length;
+    }
+}
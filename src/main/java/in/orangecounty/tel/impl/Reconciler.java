@@ -0,0 +1,256 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.metrics.Counter;
+import in.orangecounty.tel.metrics.Histogram;
+import in.orangecounty.tel.metrics.MetricsRegistry;
+import in.orangecounty.tel.service.ExtensionCallback;
+import in.orangecounty.tel.service.ExtensionTable;
+import in.orangecounty.tel.service.PMSRestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the PBX holds the names and restrictions the PMS has, and corrects the rooms where it does not.
+ * <p/>
+ * The PBX side is what each link collected from the replies to its status enquiries, see
+ * {@link NEAX7400PmsProtocolImpl#getReportedStatus()}.  The PMS side is read in full, sorted by extension
+ * and compared with the PBX in ranges of {@value #THRESHOLD} extensions on a fork/join pool of
+ * RECONCILE_THREADS threads (one per processor by default), each range walking both sorted lists together.
+ * Rooms the PBX has not reported are counted, not corrected.  The commands for the rooms that drifted are
+ * sent afterwards, from the calling thread, in the {@link in.orangecounty.tel.Priority#BULK} lane.
+ * <p/>
+ * A room changed after its last status reply may be corrected once more, which does no harm.  One run at a
+ * time, each recorded in the duration histogram and drift counters.
+ */
+public class Reconciler {
+    private static final Logger log = LoggerFactory.getLogger(Reconciler.class);
+    private static final int THRESHOLD = 1024;
+    private static final byte NAME_DRIFT = 1;
+    private static final byte RESTRICTION_DRIFT = 2;
+    private static final ForkJoinPool POOL = new ForkJoinPool(Env.getInt("RECONCILE_THREADS",
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Outcome of a {@link #reconcile}.
+     */
+    public static final class Result {
+        private final int checked;
+        private final int nameDrift;
+        private final int restrictionDrift;
+        private final int unreported;
+        private final int commandsSent;
+        private final long durationMillis;
+
+        Result(int checked, int nameDrift, int restrictionDrift, int unreported, int commandsSent,
+               long durationMillis) {
+            this.checked = checked;
+            this.nameDrift = nameDrift;
+            this.restrictionDrift = restrictionDrift;
+            this.unreported = unreported;
+            this.commandsSent = commandsSent;
+            this.durationMillis = durationMillis;
+        }
+
+        /**
+         * @return extensions from the PMS served by a link
+         */
+        public int getChecked() {
+            return checked;
+        }
+
+        public int getNameDrift() {
+            return nameDrift;
+        }
+
+        public int getRestrictionDrift() {
+            return restrictionDrift;
+        }
+
+        /**
+         * @return extensions the PBX has not reported, left as they are
+         */
+        public int getUnreported() {
+            return unreported;
+        }
+
+        public int getCommandsSent() {
+            return commandsSent;
+        }
+
+        /**
+         * @return from reading the PMS to the last command queued
+         */
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return checked + " extensions checked, " + nameDrift + " names and " + restrictionDrift
+                    + " restrictions drifted, " + unreported + " unreported, " + commandsSent + " commands sent in "
+                    + durationMillis + " ms";
+        }
+    }
+
+    private final PMSRestClient pmsRestClient;
+    private final ExtensionCallback listener;
+    private Histogram duration;
+    private Counter nameDrift;
+    private Counter restrictionDrift;
+    private Counter unreported;
+
+    /**
+     * @param listener also gets every extension read from the PMS, may be null
+     */
+    public Reconciler(PMSRestClient pmsRestClient, ExtensionCallback listener) {
+        this.pmsRestClient = pmsRestClient;
+        this.listener = listener;
+        setMetrics(new MetricsRegistry(), "reconcile");
+    }
+
+    /**
+     * Registers the duration, in microseconds, and the drift counters under the prefix.
+     */
+    public void setMetrics(MetricsRegistry registry, String prefix) {
+        duration = registry.histogram(prefix + ".duration");
+        nameDrift = registry.counter(prefix + ".drift.name");
+        restrictionDrift = registry.counter(prefix + ".drift.restriction");
+        unreported = registry.counter(prefix + ".unreported");
+    }
+
+    /**
+     * @param links sorted by extension range, as {@link LinkManager#getLinks()} returns them
+     * @return the counts, or null if the PMS did not answer in full
+     */
+    public synchronized Result reconcile(List<LinkManager.Link> links) {
+        long start = System.nanoTime();
+        ExtensionTable pms = pmsRestClient.getExtensions(listener);
+        if (pms == null) {
+            log.warn("Extensions from the PMS incomplete, nothing reconciled");
+            return null;
+        }
+        final long[] extensions = new long[pms.size()];
+        pms.forEach(new ExtensionCallback() {
+            private int next = 0;
+
+            @Override
+            public void onExtension(long extension, boolean unrestricted, String name) {
+                extensions[next++] = extension;
+            }
+        });
+        Arrays.sort(extensions);
+        byte[] drift = new byte[extensions.length];
+        int[] totals = new int[4];
+        int sent = 0;
+        for (LinkManager.Link link : links) {
+            int from = lowerBound(extensions, link.getFirstExtension());
+            int to = link.getLastExtension() == Long.MAX_VALUE ? extensions.length
+                    : lowerBound(extensions, link.getLastExtension() + 1);
+            ExtensionShadowTable.Snapshot pbx = link.getProtocol().getReportedStatus();
+            int[] counts = POOL.invoke(new Diff(extensions, pms, pbx, drift, from, to));
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += counts[i];
+            }
+            for (int i = from; i < to; i++) {
+                if (drift[i] != 0) {
+                    long extension = extensions[i];
+                    sent += link.getProtocol().correctExtension(extension, pms.isUnrestricted(extension),
+                            pms.getName(extension), (drift[i] & NAME_DRIFT) != 0, (drift[i] & RESTRICTION_DRIFT) != 0);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        duration.record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+        nameDrift.add(totals[1]);
+        restrictionDrift.add(totals[2]);
+        unreported.add(totals[3]);
+        Result result = new Result(totals[0], totals[1], totals[2], totals[3], sent,
+                TimeUnit.NANOSECONDS.toMillis(elapsed));
+        log.info("Reconcile: {}", result);
+        return result;
+    }
+
+    /* Index of the first extension not below the value */
+    private static int lowerBound(long[] extensions, long value) {
+        int index = Arrays.binarySearch(extensions, value);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    /*
+     * Compares a range of the sorted PMS extensions with the PBX snapshot, marking the drifted ones in the
+     * shared drift array, which ranges never overlap in.  Returns checked, name drift, restriction drift and
+     * unreported counts.
+     */
+    private static final class Diff extends RecursiveTask<int[]> {
+        private final long[] extensions;
+        private final ExtensionTable pms;
+        private final ExtensionShadowTable.Snapshot pbx;
+        private final byte[] drift;
+        private final int from;
+        private final int to;
+
+        Diff(long[] extensions, ExtensionTable pms, ExtensionShadowTable.Snapshot pbx, byte[] drift, int from,
+             int to) {
+            this.extensions = extensions;
+            this.pms = pms;
+            this.pbx = pbx;
+            this.drift = drift;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                Diff left = new Diff(extensions, pms, pbx, drift, from, middle);
+                left.fork();
+                int[] counts = new Diff(extensions, pms, pbx, drift, middle, to).compute();
+                int[] other = left.join();
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += other[i];
+                }
+                return counts;
+            }
+            int[] counts = new int[4];
+            if (from == to) {
+                return counts;
+            }
+            int j = pbx.indexOf(extensions[from]);
+            if (j < 0) {
+                j = -j - 1;
+            }
+            for (int i = from; i < to; i++) {
+                long extension = extensions[i];
+                while (j < pbx.size() && pbx.getExtension(j) < extension) {
+                    j++;
+                }
+                counts[0]++;
+                if (j == pbx.size() || pbx.getExtension(j) != extension
+                        || (pbx.getName(j) == null && pbx.getLevel(j) == ExtensionShadowTable.UNKNOWN)) {
+                    counts[3]++;
+                    continue;
+                }
+                byte flags = 0;
+                String name = pbx.getName(j);
+                if (name != null && !name.equals(ExtensionShadowTable.normalise(pms.getName(extension)))) {
+                    flags |= NAME_DRIFT;
+                    counts[1]++;
+                }
+                byte level = pbx.getLevel(j);
+                if (level != ExtensionShadowTable.UNKNOWN && level != (pms.isUnrestricted(extension) ? 0 : 1)) {
+                    flags |= RESTRICTION_DRIFT;
+                    counts[2]++;
+                }
+                drift[i] = flags;
+            }
+            return counts;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package in.orangecounty.tel.impl;
 import gnu.io.*;
 import in.orangecounty.tel.SerialLayer;
 import in.orangecounty.tel.DataLayer;
+import in.orangecounty.tel.metrics.Counter;
+import in.orangecounty.tel.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,22 +26,69 @@ public class SerialImpl implements SerialLayer {
     private InputStream inputStream;
     private OutputStream outputStream;
     private SerialPort serialPort;
+    private String portName;
+    private final ReceiveRing receiveRing = new ReceiveRing(4096);
+    private Counter bytesSent;
+    private Counter bytesReceived;
+    private Counter writeErrors;
+    private volatile WireTraceRecorder trace;
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            if (dataLayer != null) {
+                dataLayer.onMessage(buffer, offset, length);
+            }
+        }
+    });
+
+    public SerialImpl() {
+        setMetrics(new MetricsRegistry(), "serial");
+    }
+
+    /**
+     * Registers the byte counts and write errors under the prefix, see {@link DataLayerImpl#setMetrics}.
+     */
+    public void setMetrics(MetricsRegistry registry, String prefix) {
+        bytesSent = registry.counter(prefix + ".bytes.sent");
+        bytesReceived = registry.counter(prefix + ".bytes.received");
+        writeErrors = registry.counter(prefix + ".write.errors");
+    }
+
+    /**
+     * Records every byte sent and received, null to stop.
+     */
+    public void setWireTrace(WireTraceRecorder trace) {
+        this.trace = trace;
+    }
 
     @Override
     public void setDataLayer(DataLayer dataLayer) {
         this.dataLayer = dataLayer;
     }
 
+    /**
+     * Port to open on {@link #start()}.  When not set the SERIAL_PORT_NAME environment variable is used.
+     */
+    public void setPortName(String portName) {
+        this.portName = portName;
+    }
+
+    public String getPortName() {
+        return portName;
+    }
+
 
     public void start() throws IOException {
         if (serialPort != null) {
             throw new IOException("Start has been called already: serialPort Not null");
         }
-        Map<String, String> env = System.getenv();
-        final String envVarName="SERIAL_PORT_NAME";
-        String portName = "/dev/ttyS0";
-        if(env.get(envVarName)!=null){
-            portName = env.get(envVarName);
+        if (portName == null) {
+            Map<String, String> env = System.getenv();
+            final String envVarName="SERIAL_PORT_NAME";
+            portName = "/dev/ttyS0";
+            if(env.get(envVarName)!=null){
+                portName = env.get(envVarName);
+            }
         }
         this.connect(portName);
     }
@@ -69,9 +118,27 @@ public class SerialImpl implements SerialLayer {
 
     @Override
     public void sendMessage(byte[] message) throws Exception {
+        sendMessage(message, 0, message.length);
+    }
+
+    @Override
+    public void sendMessage(byte[] buffer, int offset, int length) throws Exception {
         if (outputStream != null) {
-            log.debug("Sending Message : {}", message);
-            outputStream.write(message);
+            if (log.isDebugEnabled()) {
+                log.debug("Sending Message : {}", Arrays.toString(Arrays.copyOfRange(buffer, offset,
+                        offset + length)));
+            }
+            WireTraceRecorder recorder = trace;
+            if (recorder != null) {
+                recorder.record(WireTraceRecorder.SENT, buffer, offset, length);
+            }
+            try {
+                outputStream.write(buffer, offset, length);
+            } catch (IOException e) {
+                writeErrors.inc();
+                throw e;
+            }
+            bytesSent.add(length);
             log.debug("Sending Done");
         } else {
             throw new IOException("No Output Stream.  Call start() before calling sendMessage()");
@@ -89,6 +156,7 @@ public class SerialImpl implements SerialLayer {
 
             /*  Get the port's ownership */
             serialPort = (SerialPort) portId.open("Demo application", 5000);
+            decoder.reset();
 
             /*  Set the parameters of the connection. */
             setSerialPortParameters();
@@ -103,28 +171,15 @@ public class SerialImpl implements SerialLayer {
                 public void serialEvent(SerialPortEvent serialPortEvent) {
                     switch (serialPortEvent.getEventType()) {
                         case SerialPortEvent.DATA_AVAILABLE:
-                            byte[] readBuffer = new byte[400];
                             try {
-                                Thread.sleep(600);
-                                int bytesAvailable = inputStream.available();
-                                if (bytesAvailable > 0) {
-                                    /* Read the serial port */
-                                    int bytesRead = inputStream.read(readBuffer, 0, bytesAvailable);
-                                    if(bytesRead != bytesAvailable){
-                                        log.debug("Bytes read {} not equal to Bytes available {}", bytesRead, bytesAvailable);
-                                    }
-                                    byte[] readCopy = Arrays.copyOfRange(readBuffer,0, bytesAvailable);
-
-                                    /* Print it out */
-                                    log.debug("Received : {} coverted to {}", readCopy, new String(readCopy));
-                                    if(dataLayer !=null){
-                                        dataLayer.onMessage(readCopy);
-                                    }
+                                /* Hand every byte to the decoder as soon as it arrives, it emits one complete frame per callback */
+                                int read;
+                                while ((read = receiveRing.readFrom(inputStream)) > 0) {
+                                    bytesReceived.add(read);
+                                    receiveRing.drainTo(decoder, trace);
                                 }
                             } catch (IOException e) {
                                 log.warn("IOException : ", e);
-                            } catch (InterruptedException e) {
-                                log.warn("InterruptedException: ", e);
                             }
                     }
                 }
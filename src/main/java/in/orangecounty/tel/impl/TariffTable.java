@@ -0,0 +1,255 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prices calls from a tariff of destination prefixes, so the PMS receives each call with its charge.
+ * <p/>
+ * The tariff is a CSV file with a header line, one rate per line:
+ * <pre>
+ * prefix,description,from,to,pulse,price
+ * 0,STD,07:00,23:00,60,1.20
+ * 0,STD night,23:00,07:00,120,1.20
+ * 00,ISD,00:00,24:00,30,4.50
+ * 0044,United Kingdom,00:00,24:00,30,3.00
+ * </pre>
+ * A call is rated by the longest prefix of its called number that has a rate for the time of day the call
+ * started; from is inclusive and to exclusive, a band with from after to runs over midnight.  The duration
+ * is rounded up to whole pulses of pulse seconds and each pulse costs price.  An empty prefix matches every
+ * number.  Calls no rate matches, internal calls for example, are left for the PMS to rate.
+ * <p/>
+ * The prefixes are held in an array trie of ten children a node and the rates in parallel arrays, so a
+ * lookup walks the digits of the number once and allocates nothing.  Immutable once loaded, thread safe.
+ */
+public class TariffTable {
+    private static final Logger log = LoggerFactory.getLogger(TariffTable.class);
+    private static final int MINUTES_A_DAY = 24 * 60;
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    /* children[node * 10 + digit] is the child node, 0 for none; node 0 is the root */
+    private int[] children = new int[10];
+    private int nodes = 1;
+    /* first rate of each node, -1 for none, the rest are chained through rateNext */
+    private int[] firstRate = {-1};
+    private int rates;
+    private int[] rateFrom = new int[16];
+    private int[] rateTo = new int[16];
+    private int[] ratePulse = new int[16];
+    private long[] ratePrice = new long[16];
+    private int[] rateNext = new int[16];
+    private String[] rateName = new String[16];
+    private final TimeZone timeZone;
+
+    TariffTable(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Reads the tariff from TARIFF_FILE.
+     *
+     * @return the tariff, or null when TARIFF_FILE is not set or cannot be read, leaving calls to the PMS
+     */
+    public static TariffTable fromEnvironment() {
+        String file = Env.getString("TARIFF_FILE", null);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return load(new File(file));
+        } catch (IOException e) {
+            log.error("Could not read the tariff " + file + ", calls go to the PMS unrated", e);
+            return null;
+        }
+    }
+
+    public static TariffTable load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            TariffTable table = load(reader, TimeZone.getDefault());
+            log.info("Loaded {} rates from {}", table.rates, file);
+            return table;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param timeZone the zone the time bands are in
+     * @throws IOException if the CSV cannot be read or a line is not a rate
+     */
+    public static TariffTable load(Reader reader, TimeZone timeZone) throws IOException {
+        TariffTable table = new TariffTable(timeZone);
+        CSVFormat format = CSVFormat.DEFAULT.withHeader().withIgnoreSurroundingSpaces().withIgnoreEmptyLines()
+                .withCommentMarker('#');
+        for (CSVRecord line : format.parse(reader)) {
+            try {
+                table.add(line.get("prefix"), line.get("description"), parseTime(line.get("from")),
+                        parseTime(line.get("to")), Integer.parseInt(line.get("pulse")),
+                        new BigDecimal(line.get("price")).movePointRight(6).longValueExact());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Tariff entry " + line.getRecordNumber() + " is not a rate: " + e.getMessage(),
+                        e);
+            } catch (ArithmeticException e) {
+                throw new IOException("Tariff entry " + line.getRecordNumber() + " has a price finer than a millionth",
+                        e);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param from  minute of the day the rate starts
+     * @param to    minute of the day the rate ends, up to 1440
+     * @param price of one pulse in millionths of the currency unit
+     */
+    void add(String prefix, String name, int from, int to, int pulse, long price) {
+        if (pulse <= 0 || price < 0) {
+            throw new IllegalArgumentException("pulse must be positive and price not negative");
+        }
+        int node = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            int digit = prefix.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("prefix " + prefix + " is not a number");
+            }
+            int child = children[node * 10 + digit];
+            if (child == 0) {
+                child = newNode();
+                children[node * 10 + digit] = child;
+            }
+            node = child;
+        }
+        if (rates == rateFrom.length) {
+            int capacity = rates * 2;
+            rateFrom = Arrays.copyOf(rateFrom, capacity);
+            rateTo = Arrays.copyOf(rateTo, capacity);
+            ratePulse = Arrays.copyOf(ratePulse, capacity);
+            ratePrice = Arrays.copyOf(ratePrice, capacity);
+            rateNext = Arrays.copyOf(rateNext, capacity);
+            rateName = Arrays.copyOf(rateName, capacity);
+        }
+        rateFrom[rates] = from;
+        rateTo[rates] = to;
+        ratePulse[rates] = pulse;
+        ratePrice[rates] = price;
+        rateName[rates] = name;
+        rateNext[rates] = firstRate[node];
+        firstRate[node] = rates++;
+    }
+
+    private int newNode() {
+        if (nodes * 10 == children.length) {
+            children = Arrays.copyOf(children, children.length * 2);
+            firstRate = Arrays.copyOf(firstRate, nodes * 2);
+            Arrays.fill(firstRate, nodes, nodes * 2, -1);
+        }
+        return nodes++;
+    }
+
+    /**
+     * @return the call with its pulses and charge, or the same record if no rate matches it
+     */
+    public CallRecord rate(CallRecord record) {
+        int rate = find(record.getCalledNumber(), minuteOfDay(record.getStartTime()));
+        if (rate < 0) {
+            return record;
+        }
+        int pulses = getPulses(rate, record.getDuration());
+        return record.withCharge(pulses, pulses * ratePrice[rate]);
+    }
+
+    /**
+     * @param minute minute of the day the call started
+     * @return the rate of the longest prefix of the number with a band covering the minute, -1 if none.
+     * Digits are read up to the first character that is not one.
+     */
+    public int find(CharSequence number, int minute) {
+        int node = 0;
+        int found = band(0, minute);
+        for (int i = 0; i < number.length(); i++) {
+            int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            node = children[node * 10 + digit];
+            if (node == 0) {
+                break;
+            }
+            int rate = band(node, minute);
+            if (rate >= 0) {
+                found = rate;
+            }
+        }
+        return found;
+    }
+
+    private int band(int node, int minute) {
+        for (int rate = firstRate[node]; rate >= 0; rate = rateNext[rate]) {
+            int from = rateFrom[rate];
+            int to = rateTo[rate];
+            if (from <= to ? minute >= from && minute < to : minute >= from || minute < to) {
+                return rate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the seconds rounded up to whole pulses of the rate, none for a call that was not answered
+     */
+    public int getPulses(int rate, int seconds) {
+        return seconds <= 0 ? 0 : (seconds + ratePulse[rate] - 1) / ratePulse[rate];
+    }
+
+    public long getPrice(int rate) {
+        return ratePrice[rate];
+    }
+
+    public String getName(int rate) {
+        return rateName[rate];
+    }
+
+    public int size() {
+        return rates;
+    }
+
+    /**
+     * @return the minute of the day in the tariff's zone
+     */
+    public int minuteOfDay(long time) {
+        long local = time + timeZone.getOffset(time);
+        return (int) ((local / MINUTE) % MINUTES_A_DAY + MINUTES_A_DAY) % MINUTES_A_DAY;
+    }
+
+    /* HH:mm, 24:00 being the end of the day */
+    private static int parseTime(String time) {
+        int colon = time.indexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException(time + " is not HH:mm");
+        }
+        int minute = Integer.parseInt(time.substring(0, colon)) * 60 + Integer.parseInt(time.substring(colon + 1));
+        if (minute < 0 || minute > MINUTES_A_DAY) {
+            throw new IllegalArgumentException(time + " is not a time of day");
+        }
+        return minute;
+    }
+
+    @Override
+    public String toString() {
+        return "TariffTable{rates=" + rates + ", nodes=" + nodes + "}";
+    }
+}
@@ -0,0 +1,188 @@
+package in.orangecounty.tel.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flight recorder of the raw bytes on a link, for looking at what went over the wire after the fact.
+ * <p/>
+ * A memory mapped ring of fixed 64 byte slots, each holding a sequence number, a timestamp in
+ * microseconds, the direction and up to 46 bytes; longer writes take several slots.  Recording claims a
+ * slot with one atomic increment and copies the bytes into the mapping, it never locks, allocates or
+ * makes a system call, so the serial thread and the event loop record without waiting on each other or
+ * on the disk.  The oldest slots are overwritten when the ring is full.  The sequence number is written
+ * last, {@link #dump} orders the slots by it.
+ * <p/>
+ * Read a trace with {@code java in.orangecounty.tel.impl.WireTraceRecorder <file>}.
+ */
+public class WireTraceRecorder {
+    private static final Logger log = LoggerFactory.getLogger(WireTraceRecorder.class);
+    public static final byte RECEIVED = 'R';
+    public static final byte SENT = 'S';
+    private static final int MAGIC = 0x57495245;
+    private static final int HEADER = 16;
+    private static final int SLOT = 64;
+    /* sequence number, timestamp, direction and length */
+    private static final int SLOT_HEADER = 18;
+    private static final int PAYLOAD = SLOT - SLOT_HEADER;
+
+    private final File file;
+    private final int slots;
+    private final AtomicLong nextSequence = new AtomicLong(1);
+    private final long baseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final long baseNanos = System.nanoTime();
+    private volatile MappedByteBuffer mapped;
+
+    /**
+     * @param size bytes of the ring file, rounded down to whole slots
+     */
+    public WireTraceRecorder(File file, int size) {
+        this.file = file;
+        this.slots = Math.max(1, (size - HEADER) / SLOT);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Maps the file, continuing the sequence of a trace already in it.
+     */
+    public synchronized void open() throws IOException {
+        if (mapped != null) {
+            return;
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER + (long) slots * SLOT);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != slots) {
+                for (int i = 0; i < HEADER + slots * SLOT; i += 8) {
+                    buffer.putLong(i, 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, slots);
+            }
+            long last = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                last = Math.max(last, buffer.getLong(HEADER + slot * SLOT));
+            }
+            nextSequence.set(last + 1);
+            mapped = buffer;
+        } finally {
+            raf.close();
+        }
+        log.info("Recording link bytes to {}", file);
+    }
+
+    /**
+     * Copies the bytes into the ring.  Does nothing when the recorder is not open.
+     *
+     * @param direction {@link #RECEIVED} or {@link #SENT}
+     */
+    public void record(byte direction, byte[] bytes, int offset, int length) {
+        MappedByteBuffer buffer = mapped;
+        if (buffer == null) {
+            return;
+        }
+        long micros = baseMicros + (System.nanoTime() - baseNanos) / 1000;
+        do {
+            int chunk = Math.min(length, PAYLOAD);
+            long sequence = nextSequence.getAndIncrement();
+            int position = HEADER + (int) (sequence % slots) * SLOT;
+            buffer.putLong(position + 8, micros);
+            buffer.put(position + 16, direction);
+            buffer.put(position + 17, (byte) chunk);
+            for (int i = 0; i < chunk; i++) {
+                buffer.put(position + SLOT_HEADER + i, bytes[offset + i]);
+            }
+            buffer.putLong(position, sequence);
+            offset += chunk;
+            length -= chunk;
+        } while (length > 0);
+    }
+
+    /**
+     * Forces the ring to disk and stops recording.
+     */
+    public synchronized void close() {
+        MappedByteBuffer buffer = mapped;
+        if (buffer != null) {
+            mapped = null;
+            buffer.force();
+        }
+    }
+
+    /**
+     * Prints the trace oldest first, one line per slot: time, direction, bytes in hex and as text.
+     */
+    public static void dump(File file, PrintStream out) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a wire trace");
+            }
+            int slots = buffer.getInt(4);
+            List<long[]> used = new ArrayList<long[]>();
+            for (int slot = 0; slot < slots; slot++) {
+                long sequence = buffer.getLong(HEADER + slot * SLOT);
+                if (sequence > 0) {
+                    used.add(new long[]{sequence, HEADER + slot * SLOT});
+                }
+            }
+            Collections.sort(used, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+                }
+            });
+            SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            for (long[] slot : used) {
+                int position = (int) slot[1];
+                long micros = buffer.getLong(position + 8);
+                int length = Math.min(buffer.get(position + 17) & 0xFF, PAYLOAD);
+                StringBuilder hex = new StringBuilder();
+                StringBuilder text = new StringBuilder();
+                for (int i = 0; i < length; i++) {
+                    int b = buffer.get(position + SLOT_HEADER + i) & 0xFF;
+                    hex.append(String.format("%02x ", b));
+                    text.append(b >= 0x20 && b < 0x7f ? (char) b : '.');
+                }
+                out.println(String.format("%s%03d %c %-138s|%s|",
+                        time.format(new Date(TimeUnit.MICROSECONDS.toMillis(micros))), micros % 1000,
+                        (char) buffer.get(position + 16), hex, text));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: WireTraceRecorder <trace file>");
+            System.exit(2);
+        }
+        dump(new File(args[0]), System.out);
+    }
+}
@@ -0,0 +1,61 @@
+package in.orangecounty.tel.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and their rate per second, an exponentially weighted average over about a minute.
+ * <p/>
+ * The rate is brought up to date every five seconds by whichever thread counts or reads first, there is no
+ * thread behind it.  Thread safe and allocation free.
+ */
+public class Counter {
+    private static final long TICK = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+    private final AtomicLong count = new AtomicLong();
+    /* Counted since the last tick */
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double rate = 0;
+    private volatile boolean initialised = false;
+
+    public void inc() {
+        add(1);
+    }
+
+    public void add(long n) {
+        tickIfNeeded();
+        count.addAndGet(n);
+        uncounted.addAndGet(n);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return events per second over about the last minute
+     */
+    public double getRate() {
+        tickIfNeeded();
+        return rate;
+    }
+
+    private void tickIfNeeded() {
+        long last = lastTick.get();
+        long now = System.nanoTime();
+        long ticks = (now - last) / TICK;
+        if (ticks <= 0 || !lastTick.compareAndSet(last, last + ticks * TICK)) {
+            return;
+        }
+        double instant = uncounted.getAndSet(0) / 5.0;
+        double current = initialised ? rate + ALPHA * (instant - rate) : instant;
+        initialised = true;
+        /* Idle ticks after the first decay the rate towards zero */
+        for (long i = 1; i < ticks && i < 100; i++) {
+            current -= ALPHA * current;
+        }
+        rate = current;
+    }
+}
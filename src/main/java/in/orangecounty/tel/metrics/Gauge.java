@@ -0,0 +1,8 @@
+package in.orangecounty.tel.metrics;
+
+/**
+ * A value read when the metrics are, such as a queue depth.
+ */
+public interface Gauge {
+    long getValue();
+}
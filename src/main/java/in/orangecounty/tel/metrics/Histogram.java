@@ -0,0 +1,106 @@
+package in.orangecounty.tel.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, typically latencies in microseconds.
+ * <p/>
+ * Log-linear buckets in the manner of HdrHistogram: values below 32 have a bucket each, above that every
+ * power of two is split into 16 buckets, so a percentile is within 1/16 of the true value over the whole
+ * range of a long.  Recording is a few arithmetic operations and an atomic increment, it never allocates
+ * or locks.  Percentiles are read from the live counts and may mix in values recorded while they are
+ * read.
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - 5) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the highest value of the bucket holding the percentile, never more than the maximum
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return count, mean, p50, p90, p99, p99.9 and max
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("count", getCount());
+        values.put("mean", Math.round(getMean() * 10) / 10.0);
+        values.put("p50", getPercentile(50));
+        values.put("p90", getPercentile(90));
+        values.put("p99", getPercentile(99));
+        values.put("p999", getPercentile(99.9));
+        values.put("max", getMax());
+        return values;
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        int sub = (int) (value >>> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+    }
+
+    static long highestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        long upper = ((sub + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
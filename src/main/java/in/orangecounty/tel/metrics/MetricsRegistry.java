@@ -0,0 +1,192 @@
+package in.orangecounty.tel.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, histograms and gauges.
+ * <p/>
+ * Names are dotted, for example link./dev/ttyS0.naks.received.  Asking for a counter or histogram by a name
+ * already taken returns the one registered, so components may look their metrics up once and keep them.
+ * {@link #shared()} is the registry of the process, published to JMX as in.orangecounty.tel:type=Metrics
+ * with one attribute per value and served as JSON by the /metrics servlet.
+ */
+public class MetricsRegistry {
+    private static final Logger log = LoggerFactory.getLogger(MetricsRegistry.class);
+    private static final String OBJECT_NAME = "in.orangecounty.tel:type=Metrics";
+    private static MetricsRegistry shared;
+
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * @return the registry of the process, registered with the platform MBean server on first use
+     */
+    public static synchronized MetricsRegistry shared() {
+        if (shared == null) {
+            shared = new MetricsRegistry();
+            shared.registerMBean(OBJECT_NAME);
+        }
+        return shared;
+    }
+
+    public Counter counter(String name) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            metrics.putIfAbsent(name, new Counter());
+            metric = metrics.get(name);
+        }
+        return cast(name, metric, Counter.class);
+    }
+
+    public Histogram histogram(String name) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            metrics.putIfAbsent(name, new Histogram());
+            metric = metrics.get(name);
+        }
+        return cast(name, metric, Histogram.class);
+    }
+
+    /**
+     * Registers a gauge, replacing one of the same name, so a component that is recreated reports its
+     * latest instance.
+     */
+    public void gauge(String name, Gauge gauge) {
+        metrics.put(name, gauge);
+    }
+
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * @return every metric by name: a counter as its count and rate, a histogram as its summary, a gauge as
+     * its value
+     */
+    public SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                Counter counter = (Counter) metric;
+                Map<String, Object> counted = new LinkedHashMap<String, Object>();
+                counted.put("count", counter.getCount());
+                counted.put("rate", Math.round(counter.getRate() * 100) / 100.0);
+                values.put(entry.getKey(), counted);
+            } else if (metric instanceof Histogram) {
+                values.put(entry.getKey(), ((Histogram) metric).snapshot());
+            } else {
+                values.put(entry.getKey(), ((Gauge) metric).getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the snapshot with nested values flattened, link.x.ack.latency.p99 and so on
+     */
+    public SortedMap<String, Object> flatten() {
+        SortedMap<String, Object> flat = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                for (Map.Entry<?, ?> value : ((Map<?, ?>) entry.getValue()).entrySet()) {
+                    flat.put(entry.getKey() + "." + value.getKey(), value.getValue());
+                }
+            } else {
+                flat.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return flat;
+    }
+
+    private void registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            log.warn("Could not publish the metrics to JMX", e);
+        }
+    }
+
+    private static <T> T cast(String name, Object metric, Class<T> type) {
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + metric.getClass().getSimpleName()
+                    + ", not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /* Read only view of the registry, the attributes are whatever is registered when it is asked */
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = flatten().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> flat = flatten();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (flat.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, flat.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            /* No operations, only attributes */
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Object> flat = flatten();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[flat.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : flat.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Gateway metrics", attributes, null, null, null);
+        }
+    }
+}
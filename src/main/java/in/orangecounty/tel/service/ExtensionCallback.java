@@ -0,0 +1,12 @@
+package in.orangecounty.tel.service;
+
+/**
+ * Receives the extensions from the PMS one at a time, while the response is still being read.
+ */
+public interface ExtensionCallback {
+    /**
+     * @param unrestricted true if the PMS marks the extension "true", outward calls allowed
+     * @param name         the guest name, empty for a vacant room
+     */
+    void onExtension(long extension, boolean unrestricted, String name);
+}
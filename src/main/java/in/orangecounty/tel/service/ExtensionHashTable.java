@@ -0,0 +1,107 @@
+package in.orangecounty.tel.service;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing on a primitive long array of extension numbers, linear probing, kept at most half full.
+ * <p/>
+ * Subclasses hold the values in parallel arrays indexed by slot and move them when the table grows, see
+ * {@link #resize}.  Not thread safe, subclasses that are lock around it.
+ */
+public abstract class ExtensionHashTable {
+    protected static final long FREE = Long.MIN_VALUE;
+
+    protected long[] keys;
+    protected int size = 0;
+
+    protected ExtensionHashTable(int expectedExtensions) {
+        keys = new long[Integer.highestOneBit(Math.max(expectedExtensions * 2, 16) - 1) << 1];
+        Arrays.fill(keys, FREE);
+    }
+
+    /**
+     * @return the extension number, or -1 if the text is not one
+     */
+    public static long parseExtension(String extension) {
+        return parseExtension(extension.toCharArray(), 0, extension.length());
+    }
+
+    /**
+     * @return the extension number in the characters, blanks around it allowed, or -1 if they are not one
+     */
+    public static long parseExtension(char[] text, int offset, int length) {
+        while (length > 0 && text[offset] <= ' ') {
+            offset++;
+            length--;
+        }
+        while (length > 0 && text[offset + length - 1] <= ' ') {
+            length--;
+        }
+        if (length == 0 || length > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = text[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the value arrays with ones of the new capacity.
+     *
+     * @param moved new slot of the value in each old slot, -1 for a free one
+     */
+    protected abstract void resize(int capacity, int[] moved);
+
+    /* Slot holding the extension, or the free slot where it would go */
+    protected final int find(long extension) {
+        int mask = keys.length - 1;
+        long h = extension * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (keys[slot] != FREE && keys[slot] != extension) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /* Slot of the extension, inserted if it is not there */
+    protected final int insert(long extension) {
+        int slot = find(extension);
+        if (keys[slot] == FREE) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(extension);
+            }
+            keys[slot] = extension;
+            size++;
+        }
+        return slot;
+    }
+
+    /* Empties the table, the values are the subclass's to reset */
+    protected final void clearKeys() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] moved = new int[oldKeys.length];
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) {
+                moved[i] = -1;
+            } else {
+                moved[i] = find(oldKeys[i]);
+                keys[moved[i]] = oldKeys[i];
+            }
+        }
+        resize(keys.length, moved);
+    }
+}
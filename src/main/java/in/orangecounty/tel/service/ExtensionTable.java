@@ -0,0 +1,76 @@
+package in.orangecounty.tel.service;
+
+/**
+ * The extensions of the property as the PMS sees them: guest name and whether outward calls are allowed.
+ * <p/>
+ * An {@link ExtensionHashTable} with the values in parallel arrays, so thousands of rooms
+ * cost a few arrays instead of a boxed key and two hash maps per room.  Filled through
+ * {@link #onExtension}, usually by the streaming decoder.  Not thread safe while it is being filled.
+ */
+public class ExtensionTable extends ExtensionHashTable implements ExtensionCallback {
+    private String[] names;
+    private boolean[] unrestricted;
+
+    public ExtensionTable() {
+        this(256);
+    }
+
+    public ExtensionTable(int expectedExtensions) {
+        super(expectedExtensions);
+        names = new String[keys.length];
+        unrestricted = new boolean[keys.length];
+    }
+
+    @Override
+    public void onExtension(long extension, boolean unrestricted, String name) {
+        int slot = insert(extension);
+        names[slot] = name;
+        this.unrestricted[slot] = unrestricted;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long extension) {
+        return keys[find(extension)] == extension;
+    }
+
+    /**
+     * @return the guest name, or null if the PMS did not list the extension
+     */
+    public String getName(long extension) {
+        int slot = find(extension);
+        return keys[slot] == extension ? names[slot] : null;
+    }
+
+    public boolean isUnrestricted(long extension) {
+        int slot = find(extension);
+        return keys[slot] == extension && unrestricted[slot];
+    }
+
+    /**
+     * Hands every extension to the callback, in no particular order.
+     */
+    public void forEach(ExtensionCallback callback) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                callback.onExtension(keys[i], unrestricted[i], names[i]);
+            }
+        }
+    }
+
+    @Override
+    protected void resize(int capacity, int[] moved) {
+        String[] oldNames = names;
+        boolean[] oldUnrestricted = unrestricted;
+        names = new String[capacity];
+        unrestricted = new boolean[capacity];
+        for (int i = 0; i < moved.length; i++) {
+            if (moved[i] >= 0) {
+                names[moved[i]] = oldNames[i];
+                unrestricted[moved[i]] = oldUnrestricted[i];
+            }
+        }
+    }
+}
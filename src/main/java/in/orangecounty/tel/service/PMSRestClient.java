@@ -1,5 +1,8 @@
 package in.orangecounty.tel.service;
 
+import in.orangecounty.tel.CallRecord;
+
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -8,5 +11,19 @@ import java.util.Map;
 public interface PMSRestClient {
     Map<Long,Map<String,String>> getExtensions();
 
-    void updateCallCharges(Map<String, Map<String, String>> stringMapMap);
+    /**
+     * Reads the extensions as the response streams in, telling the callback about each one as soon as it
+     * is decoded.
+     *
+     * @param callback may be null
+     * @return every extension read, or null if the PMS could not be reached or the response was cut short
+     */
+    ExtensionTable getExtensions(ExtensionCallback callback);
+
+    /**
+     * Posts several call records in one request.
+     *
+     * @return true if the PMS accepted them
+     */
+    boolean postCallRecords(List<CallRecord> records);
 }
@@ -0,0 +1,67 @@
+package in.orangecounty.tel.service.impl;
+
+import in.orangecounty.tel.service.ExtensionCallback;
+import in.orangecounty.tel.service.ExtensionHashTable;
+import in.orangecounty.tel.service.ExtensionTable;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the activeExtensions response token by token:
+ * <pre>
+ * {"101": {"true": "Guest Name"}, "102": {"false": ""}, ...}
+ * </pre>
+ * Each extension is added to an {@link ExtensionTable} and handed to the callback as soon as its object
+ * is read, so the caller can act on the first rooms while the rest are still arriving.  Extension numbers
+ * are read from the parser's character buffer without building a String, entries whose key is not a
+ * number are skipped.
+ */
+public final class ExtensionsDecoder {
+    private static final Logger log = LoggerFactory.getLogger(ExtensionsDecoder.class);
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private ExtensionsDecoder() {
+    }
+
+    /**
+     * @param callback also told about every extension, may be null
+     * @return every extension read
+     */
+    public static ExtensionTable decode(InputStream in, ExtensionCallback callback) throws IOException {
+        ExtensionTable table = new ExtensionTable();
+        JsonParser parser = FACTORY.createJsonParser(in);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Extensions are not a JSON object", parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                long extension = ExtensionHashTable.parseExtension(parser.getTextCharacters(),
+                        parser.getTextOffset(), parser.getTextLength());
+                if (parser.nextToken() != JsonToken.START_OBJECT || extension < 0) {
+                    log.warn("Skipping extension {}", parser.getCurrentName());
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    boolean unrestricted = "true".equals(parser.getCurrentName().trim());
+                    JsonToken value = parser.nextToken();
+                    String name = value == JsonToken.VALUE_NULL ? "" : parser.getText();
+                    table.onExtension(extension, unrestricted, name);
+                    if (callback != null) {
+                        callback.onExtension(extension, unrestricted, name);
+                    }
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return table;
+    }
+}
@@ -1,5 +1,8 @@
 package in.orangecounty.tel.service.impl;
 
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.service.ExtensionCallback;
+import in.orangecounty.tel.service.ExtensionTable;
 import in.orangecounty.tel.service.PMSRestClient;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
@@ -16,7 +19,12 @@ import org.codehaus.jackson.type.TypeReference;
 
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -69,30 +77,70 @@ public class PMSRestClientImpl implements PMSRestClient {
     }
 
     @Override
-    public void updateCallCharges(Map<String, Map<String, String>> item) {
-        PostMethod postMethod = new PostMethod("http://pmskabini.orangecounty.in/services/api/telephoneService/updateCallCharges");
-    //    PostMethod postMethod = new PostMethod("http://localhost:8082/services/api/telephoneService/updateCallCharges");
-        System.out.println("-- sending call charges -- "+item);
-        ObjectMapper objectMapper = new ObjectMapper();
+    public ExtensionTable getExtensions(ExtensionCallback callback) {
+        GetMethod getMethod = new GetMethod("http://pmskabini.orangecounty.in/services/api/telephoneService/activeExtensions");
         try {
-            postMethod.addParameter("callCharges",objectMapper.writeValueAsString(item));
+            int statusCode = client.executeMethod(getMethod);
+            if (statusCode != HttpStatus.SC_OK) {
+                log.warn("Reading the extensions failed " + statusCode);
+                return null;
+            }
+            return ExtensionsDecoder.decode(getMethod.getResponseBodyAsStream(), callback);
         } catch (IOException e) {
-//            e.printStackTrace();
-            System.out.println(" Exception ");
+            log.error("Reading the extensions failed", e);
+            return null;
+        } finally {
+            getMethod.releaseConnection();
         }
-        int statusCode = 0;
-        String result = null;
+    }
+
+    /**
+     * Sends the records as a JSON array in the callCharges parameter of updateCallChargesBatch, one object
+     * per call with CALLED_NO, START_TIME, CALL_DURATION, DATE_OF_CALL, STATION_NO and CALL_ID, and PULSES and
+     * CALL_CHARGE for calls the gateway rated.
+     */
+    @Override
+    public boolean postCallRecords(List<CallRecord> records) {
+        PostMethod postMethod = new PostMethod("http://pmskabini.orangecounty.in/services/api/telephoneService/updateCallChargesBatch");
         try {
-            statusCode = client.executeMethod(postMethod);
-        }  catch (IOException e) {
-            e.printStackTrace();
-        }
-        if(statusCode != HttpStatus.SC_OK){
-            //log.debug("lo");
-            System.out.println("Login failed "+statusCode);
-        }else {
-            System.out.println(" Posted success fully ");
+            postMethod.addParameter("callCharges", new ObjectMapper().writeValueAsString(toCallCharges(records)));
+            int statusCode = client.executeMethod(postMethod);
+            if (statusCode != HttpStatus.SC_OK) {
+                log.warn("Posting " + records.size() + " call records failed " + statusCode);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("Posting " + records.size() + " call records failed", e);
+            return false;
+        } finally {
+            postMethod.releaseConnection();
         }
+    }
 
+    /*
+     * One map per call with CALLED_NO, START_TIME, CALL_DURATION and DATE_OF_CALL plus STATION_NO and CALL_ID,
+     * the idempotency key, and for a rated call PULSES and CALL_CHARGE in currency units
+     */
+    static List<Map<String, String>> toCallCharges(List<CallRecord> records) {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        List<Map<String, String>> calls = new ArrayList<Map<String, String>>(records.size());
+        for (CallRecord record : records) {
+            Date start = new Date(record.getStartTime());
+            Map<String, String> call = new HashMap<String, String>();
+            call.put("CALL_ID", record.getId());
+            call.put("STATION_NO", record.getStation());
+            call.put("CALLED_NO", record.getCalledNumber());
+            call.put("START_TIME", timeFormat.format(start));
+            call.put("CALL_DURATION", String.valueOf(record.getDuration()));
+            call.put("DATE_OF_CALL", dateFormat.format(start));
+            if (record.isRated()) {
+                call.put("PULSES", String.valueOf(record.getPulses()));
+                call.put("CALL_CHARGE", BigDecimal.valueOf(record.getCharge(), 6).toPlainString());
+            }
+            calls.add(call);
+        }
+        return calls;
     }
 }
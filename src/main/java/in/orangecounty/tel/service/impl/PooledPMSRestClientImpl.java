@@ -0,0 +1,218 @@
+package in.orangecounty.tel.service.impl;
+
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.impl.Env;
+import in.orangecounty.tel.metrics.Counter;
+import in.orangecounty.tel.metrics.Gauge;
+import in.orangecounty.tel.metrics.Histogram;
+import in.orangecounty.tel.metrics.MetricsRegistry;
+import in.orangecounty.tel.service.ExtensionCallback;
+import in.orangecounty.tel.service.ExtensionTable;
+import in.orangecounty.tel.service.PMSRestClient;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe PMS client on a pool of keep-alive connections.
+ * <p/>
+ * Configured from the environment: PMS_URL, the base of the telephone service; PMS_CONNECT_TIMEOUT and
+ * PMS_READ_TIMEOUT in milliseconds; PMS_MAX_CONNECTIONS, the size of the pool; PMS_MAX_IN_FLIGHT, the
+ * most requests running at once.  A caller that finds every slot taken for PMS_ACQUIRE_TIMEOUT
+ * milliseconds fails instead of queueing, so a slow PMS cannot tie up the gateway's threads.
+ * <p/>
+ * Responses are parsed straight from the response stream by one shared ObjectMapper, the extensions by
+ * {@link ExtensionsDecoder} while the connection is still delivering them.
+ */
+public class PooledPMSRestClientImpl implements PMSRestClient, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PooledPMSRestClientImpl.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<HashMap<Long, HashMap<String, String>>> EXTENSIONS =
+            new TypeReference<HashMap<Long, HashMap<String, String>>>() {
+            };
+
+    private final String baseUrl;
+    private final int maxInFlight;
+    private final long acquireTimeout;
+    private final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+    private final HttpClient client;
+    private final Semaphore inFlight;
+    private Counter requests;
+    private Counter failures;
+    private Counter refused;
+    private Histogram latency;
+
+    public PooledPMSRestClientImpl() {
+        this(Env.getString("PMS_URL", "http://pmskabini.orangecounty.in/services/api/telephoneService/"),
+                Env.getInt("PMS_CONNECT_TIMEOUT", 5000), Env.getInt("PMS_READ_TIMEOUT", 30000),
+                Env.getInt("PMS_MAX_CONNECTIONS", 8), Env.getInt("PMS_MAX_IN_FLIGHT", 8),
+                Env.getLong("PMS_ACQUIRE_TIMEOUT", 5000));
+    }
+
+    public PooledPMSRestClientImpl(String baseUrl, int connectTimeout, int readTimeout, int maxConnections,
+                                   int maxInFlight, long acquireTimeout) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.maxInFlight = maxInFlight;
+        this.acquireTimeout = acquireTimeout;
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setConnectionTimeout(connectTimeout);
+        params.setSoTimeout(readTimeout);
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setMaxTotalConnections(maxConnections);
+        params.setStaleCheckingEnabled(true);
+        client = new HttpClient(connectionManager);
+        /* Waiting for a pooled connection counts against the connect timeout */
+        client.getParams().setConnectionManagerTimeout(connectTimeout);
+        inFlight = new Semaphore(maxInFlight);
+        setMetrics(new MetricsRegistry(), "pms");
+    }
+
+    /**
+     * Registers request and failure counts, requests refused for want of a slot, the request latency in
+     * microseconds and the requests in flight under the prefix.
+     */
+    public void setMetrics(MetricsRegistry registry, String prefix) {
+        requests = registry.counter(prefix + ".requests");
+        failures = registry.counter(prefix + ".failures");
+        refused = registry.counter(prefix + ".refused");
+        latency = registry.histogram(prefix + ".latency");
+        registry.gauge(prefix + ".inflight", new Gauge() {
+            @Override
+            public long getValue() {
+                return maxInFlight - inFlight.availablePermits();
+            }
+        });
+    }
+
+    @Override
+    public Map<Long, Map<String, String>> getExtensions() {
+        GetMethod method = new GetMethod(baseUrl + "activeExtensions");
+        Map<Long, Map<String, String>> extensions = new HashMap<Long, Map<String, String>>();
+        if (!acquire(method)) {
+            return extensions;
+        }
+        try {
+            if (execute(method)) {
+                HashMap<Long, HashMap<String, String>> read =
+                        MAPPER.readValue(method.getResponseBodyAsStream(), EXTENSIONS);
+                extensions.putAll(read);
+            }
+        } catch (IOException e) {
+            log.error("Could not read the extensions from the PMS", e);
+        } finally {
+            method.releaseConnection();
+            inFlight.release();
+        }
+        log.debug("Extensions from the PMS: {}", extensions.size());
+        return extensions;
+    }
+
+    @Override
+    public ExtensionTable getExtensions(ExtensionCallback callback) {
+        GetMethod method = new GetMethod(baseUrl + "activeExtensions");
+        if (!acquire(method)) {
+            return null;
+        }
+        try {
+            if (!execute(method)) {
+                return null;
+            }
+            ExtensionTable extensions = ExtensionsDecoder.decode(method.getResponseBodyAsStream(), callback);
+            log.debug("Extensions from the PMS: {}", extensions.size());
+            return extensions;
+        } catch (IOException e) {
+            log.error("Could not read the extensions from the PMS", e);
+            return null;
+        } finally {
+            method.releaseConnection();
+            inFlight.release();
+        }
+    }
+
+    @Override
+    public boolean postCallRecords(List<CallRecord> records) {
+        return post("updateCallChargesBatch", PMSRestClientImpl.toCallCharges(records));
+    }
+
+    /**
+     * Closes the pooled connections.
+     */
+    @Override
+    public void close() {
+        connectionManager.shutdown();
+    }
+
+    private boolean post(String service, Object callCharges) {
+        PostMethod method = new PostMethod(baseUrl + service);
+        try {
+            method.addParameter("callCharges", MAPPER.writeValueAsString(callCharges));
+        } catch (IOException e) {
+            log.error("Could not write call charges for " + service, e);
+            return false;
+        }
+        if (!acquire(method)) {
+            return false;
+        }
+        try {
+            return execute(method);
+        } catch (IOException e) {
+            log.error("Request to the PMS failed: " + method.getPath(), e);
+            return false;
+        } finally {
+            method.releaseConnection();
+            inFlight.release();
+        }
+    }
+
+    /* One of the in-flight slots, held until the connection is released */
+    private boolean acquire(HttpMethodBase method) {
+        try {
+            if (inFlight.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            refused.inc();
+            log.warn("{} requests to the PMS in flight for {} ms, {} not sent", maxInFlight, acquireTimeout,
+                    method.getPath());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /* True if the PMS answered 200 */
+    private boolean execute(HttpMethodBase method) throws IOException {
+        requests.inc();
+        long start = System.nanoTime();
+        int statusCode;
+        try {
+            statusCode = client.executeMethod(method);
+        } catch (IOException e) {
+            failures.inc();
+            throw e;
+        } finally {
+            latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+        if (statusCode != HttpStatus.SC_OK) {
+            failures.inc();
+            log.warn("PMS answered {} to {}", statusCode, method.getPath());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CallArchiveTest {
+    /* More than the calls scan reads under the lock at a time */
+    private static final int CALLS = 3000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CallArchive archive;
+    private long day;
+
+    @Before
+    public void setUp() {
+        archive = new CallArchive(new File(folder.getRoot(), "archive"), 1);
+        Calendar noon = Calendar.getInstance();
+        noon.set(2015, Calendar.MARCH, 31, 12, 0, 0);
+        noon.set(Calendar.MILLISECOND, 0);
+        day = noon.getTimeInMillis();
+    }
+
+    @After
+    public void tearDown() {
+        archive.close();
+    }
+
+    @Test
+    public void scanCarriesOnAcrossAnIndexSort() throws IOException {
+        for (int i = 0; i < CALLS; i++) {
+            assertTrue(archive.append(call(i % 2 == 0 ? "101" : "102", i)));
+        }
+        final List<Long> seen = new ArrayList<Long>();
+
+        long scanned = archive.scan("101", day, day + 3600000L, 0, new CallRecordCallback() {
+            @Override
+            public void onCallRecord(CallRecord record) {
+                if (seen.isEmpty()) {
+                    /* Enough to sort the index again while the scan is between chunks */
+                    for (int i = CALLS; i < CALLS + 600; i++) {
+                        archive.append(call(i % 2 == 0 ? "101" : "102", i));
+                    }
+                }
+                seen.add(record.getStartTime());
+            }
+        });
+
+        assertEquals((CALLS + 600) / 2, scanned);
+        assertInOrderWithoutGaps(seen);
+    }
+
+    @Test
+    public void scanReopensAPartitionClosedBetweenChunks() throws IOException {
+        for (int i = 0; i < CALLS; i++) {
+            archive.append(call(i % 2 == 0 ? "101" : "102", i));
+        }
+        final List<Long> seen = new ArrayList<Long>();
+
+        long scanned = archive.scan("101", day, day + 3600000L, 0, new CallRecordCallback() {
+            @Override
+            public void onCallRecord(CallRecord record) throws IOException {
+                if (seen.size() % 1000 == 0) {
+                    /* Only one partition stays open, the next day's closes the scanned one */
+                    archive.append(new CallRecord("101", 1, 1, "0", day + 86400000L, 10));
+                }
+                seen.add(record.getStartTime());
+            }
+        });
+
+        assertEquals(CALLS / 2, scanned);
+        assertInOrderWithoutGaps(seen);
+    }
+
+    @Test
+    public void keepsStarAndHashInStationAndNumber() throws IOException {
+        archive.append(new CallRecord("*12#", 3, 7, "*123#4567890#*12", day, 45, 2, 1500000L));
+        archive.append(new CallRecord("12345678", 3, 7, "00-44 20", day + 1000, 45));
+
+        List<CallRecord> calls = archive.query("*12#", day, day + 1000, 10);
+
+        assertEquals(1, calls.size());
+        CallRecord call = calls.get(0);
+        assertEquals("*12#", call.getStation());
+        assertEquals("*123#4567890#*12", call.getCalledNumber());
+        assertEquals(3, call.getRoute());
+        assertEquals(7, call.getTrunk());
+        assertEquals(45, call.getDuration());
+        assertEquals(2, call.getPulses());
+        assertEquals(1500000L, call.getCharge());
+        calls = archive.query("12345678", day, day + 2000, 10);
+        assertEquals(1, calls.size());
+        assertEquals("00?44?20", calls.get(0).getCalledNumber());
+    }
+
+    private CallRecord call(String station, int i) {
+        return new CallRecord(station, 1, 1, "98765" + i, day + i, 30);
+    }
+
+    /* Station 101 took the even calls */
+    private void assertInOrderWithoutGaps(List<Long> seen) {
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals(day + 2 * i, (long) seen.get(i));
+        }
+    }
+}
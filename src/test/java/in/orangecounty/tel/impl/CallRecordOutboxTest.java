@@ -0,0 +1,266 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.CallRecord;
+import in.orangecounty.tel.service.ExtensionCallback;
+import in.orangecounty.tel.service.ExtensionTable;
+import in.orangecounty.tel.service.PMSRestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CallRecordOutboxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakePms pms = new FakePms();
+    private File dir;
+    private CallRecordOutbox outbox;
+
+    @Before
+    public void setUp() {
+        dir = new File(folder.getRoot(), "outbox");
+    }
+
+    @After
+    public void tearDown() {
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    @Test
+    public void cutsOffATornRecordAtTheTail() throws IOException, InterruptedException {
+        reopen(4096);
+        assertTrue(outbox.append(Arrays.asList(call("101", "KEPT"))));
+        assertTrue(outbox.append(Arrays.asList(call("102", "TORN"))));
+        outbox.close();
+        File segment = segments()[0];
+        long whole = segment.length();
+        RandomAccessFile raw = new RandomAccessFile(segment, "rw");
+        try {
+            /* The crash came before the CRC of the second record was written */
+            raw.setLength(whole - 3);
+        } finally {
+            raw.close();
+        }
+
+        reopen(4096);
+
+        assertEquals(1, outbox.getBacklog());
+        assertEquals(whole / 2, segment.length());
+        assertTrue(outbox.append(Arrays.asList(call("103", "AFTER"))));
+        pms.up = true;
+        awaitPosted(2);
+        assertEquals("KEPT", pms.posted.get(0).getCalledNumber());
+        assertEquals("AFTER", pms.posted.get(1).getCalledNumber());
+    }
+
+    @Test
+    public void skipsDamageInTheActiveSegment() throws IOException, InterruptedException {
+        reopen(4096);
+        assertTrue(outbox.append(Arrays.asList(call("101", "A"))));
+        assertTrue(outbox.append(Arrays.asList(call("102", "B"))));
+        assertTrue(outbox.append(Arrays.asList(call("103", "C"))));
+        File segment = segments()[0];
+        long record = segment.length() / 3;
+        RandomAccessFile raw = new RandomAccessFile(segment, "rw");
+        try {
+            /* A bad CRC on the second record while the outbox is writing to the segment */
+            raw.seek(2 * record - 1);
+            int last = raw.read();
+            raw.seek(2 * record - 1);
+            raw.write(last ^ 0xFF);
+        } finally {
+            raw.close();
+        }
+        /* Lets a batch read before the damage fail its post */
+        Thread.sleep(100);
+
+        pms.up = true;
+        awaitPosted(1);
+        awaitBacklog(0);
+        assertTrue(outbox.append(Arrays.asList(call("104", "D"))));
+        awaitPosted(2);
+
+        assertEquals("A", pms.posted.get(0).getCalledNumber());
+        assertEquals("D", pms.posted.get(1).getCalledNumber());
+        assertEquals(0, outbox.getBacklog());
+        assertFalse("the damaged segment is dropped", segment.exists());
+    }
+
+    @Test
+    public void resumesAfterTheDeliveredRecords() throws IOException, InterruptedException {
+        pms.up = true;
+        reopen(4096);
+        outbox.append(Arrays.asList(call("101", "1"), call("102", "2"), call("103", "3")));
+        awaitPosted(3);
+        outbox.close();
+
+        pms.up = false;
+        reopen(4096);
+        assertEquals("the cursor covers what was delivered", 0, outbox.getBacklog());
+        outbox.append(Arrays.asList(call("104", "4"), call("105", "5")));
+        assertEquals(2, outbox.getBacklog());
+        outbox.close();
+
+        pms.up = true;
+        reopen(4096);
+        awaitPosted(5);
+        Thread.sleep(100);
+        assertEquals(5, pms.posted.size());
+        assertEquals("4", pms.posted.get(3).getCalledNumber());
+        assertEquals("5", pms.posted.get(4).getCalledNumber());
+    }
+
+    @Test
+    public void deletesDeliveredSegments() throws IOException, InterruptedException {
+        reopen(100);
+        for (int i = 0; i < 10; i++) {
+            outbox.append(Arrays.asList(call(String.valueOf(100 + i), String.valueOf(i))));
+        }
+        assertTrue(segments().length > 2);
+
+        pms.up = true;
+        awaitPosted(10);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (segments().length > 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("only the active segment is left", 1, segments().length);
+        assertEquals(0, outbox.getBacklog());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(String.valueOf(i), pms.posted.get(i).getCalledNumber());
+        }
+    }
+
+    @Test
+    public void decodesRecordsWrittenBeforeCallsWereRated() throws IOException, InterruptedException {
+        assertTrue(dir.mkdirs());
+        writeUnratedRecord(new File(dir, String.format("%016d.seg", 1)), 1);
+        pms.up = true;
+        reopen(4096);
+        outbox.append(Arrays.asList(new CallRecord("102", 3, 7, "0442345678", 2000L, 60, 2, 1500000L)));
+
+        awaitPosted(2);
+
+        CallRecord old = pms.posted.get(0);
+        assertEquals("101", old.getStation());
+        assertEquals(3, old.getRoute());
+        assertEquals(7, old.getTrunk());
+        assertEquals("9876543210", old.getCalledNumber());
+        assertEquals(1000L, old.getStartTime());
+        assertEquals(45, old.getDuration());
+        assertFalse(old.isRated());
+        CallRecord rated = pms.posted.get(1);
+        assertEquals(2, rated.getPulses());
+        assertEquals(1500000L, rated.getCharge());
+    }
+
+    private void reopen(long segmentBytes) throws IOException {
+        outbox = new CallRecordOutbox(dir, pms, segmentBytes, 10, 4, 10, 20);
+        outbox.open();
+    }
+
+    private File[] segments() {
+        File[] found = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+        Arrays.sort(found);
+        return found;
+    }
+
+    private void awaitPosted(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pms.posted.size() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, pms.posted.size());
+    }
+
+    private void awaitBacklog(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (outbox.getBacklog() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, outbox.getBacklog());
+    }
+
+    private static CallRecord call(String station, String calledNumber) {
+        return new CallRecord(station, 1, 1, calledNumber, 1000L, 30);
+    }
+
+    /* The layout before the pulses and charge were added */
+    private static void writeUnratedRecord(File segment, long sequence) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        bodyOut.writeLong(sequence);
+        bodyOut.writeUTF("101");
+        bodyOut.writeInt(3);
+        bodyOut.writeInt(7);
+        bodyOut.writeUTF("9876543210");
+        bodyOut.writeLong(1000L);
+        bodyOut.writeInt(45);
+        bodyOut.flush();
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(segment));
+        try {
+            out.writeInt(bytes.length + 4);
+            out.write(bytes);
+            out.writeInt((int) crc.getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    /* Takes call records only while up */
+    private static final class FakePms implements PMSRestClient {
+        final List<CallRecord> posted = Collections.synchronizedList(new ArrayList<CallRecord>());
+        volatile boolean up;
+
+        @Override
+        public Map<Long, Map<String, String>> getExtensions() {
+            return null;
+        }
+
+        @Override
+        public ExtensionTable getExtensions(ExtensionCallback callback) {
+            return null;
+        }
+
+        @Override
+        public boolean postCallRecords(List<CallRecord> records) {
+            if (!up) {
+                return false;
+            }
+            posted.addAll(records);
+            return true;
+        }
+    }
+}
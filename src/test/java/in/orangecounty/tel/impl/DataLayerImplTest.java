@@ -0,0 +1,170 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.DataLayer;
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+import in.orangecounty.tel.SerialLayer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class DataLayerImplTest {
+    private static final byte ACK = 6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private OutboundJournal journal;
+    private DataLayerImpl dataLayer;
+
+    @Before
+    public void setUp() {
+        journal = new OutboundJournal(new File(folder.getRoot(), "link.journal"), 4096, 1000);
+        dataLayer = new DataLayerImpl();
+        /* A PBX that never answers, everything stays queued */
+        dataLayer.setSerialLayer(new SerialLayer() {
+            @Override
+            public void setDataLayer(DataLayer dataLayer) {
+            }
+
+            @Override
+            public void sendMessage(byte[] message) {
+            }
+
+            @Override
+            public void sendMessage(byte[] buffer, int offset, int length) {
+            }
+        });
+        dataLayer.setJournal(journal);
+    }
+
+    @After
+    public void tearDown() {
+        dataLayer.stop();
+    }
+
+    @Test
+    public void restartKeepsCommandsTheJournalMissed() throws InterruptedException {
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.name("101", "JOURNALED"), Priority.BULK);
+        awaitDepth(1);
+        /* As if the append failed, the command is only in memory */
+        journal.close();
+        dataLayer.sendCommand(PbxCommand.name("102", "UNJOURNALED"), Priority.BULK);
+        awaitDepth(2);
+
+        dataLayer.stop();
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.name("103", "AFTER"), Priority.BULK);
+
+        awaitDepth(3);
+    }
+
+    @Test
+    public void restartDoesNotDuplicateJournaledCommands() throws InterruptedException {
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.name("101", "A"), Priority.BULK);
+        dataLayer.sendCommand(PbxCommand.name("102", "B"), Priority.BULK);
+        awaitDepth(2);
+
+        dataLayer.stop();
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.name("103", "C"), Priority.BULK);
+
+        awaitDepth(3);
+    }
+
+    @Test
+    public void restartStartsOverFromIdle() throws InterruptedException {
+        dataLayer.setJournal(null);
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.name("101", "A"), Priority.BULK);
+        awaitState(DataLayerImpl.LinkState.SELECTING, 1000);
+        dataLayer.onMessage(new byte[]{ACK});
+        awaitState(DataLayerImpl.LinkState.SENDING, 1000);
+
+        dataLayer.stop();
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.name("102", "B"), Priority.BULK);
+
+        awaitState(DataLayerImpl.LinkState.SELECTING, 1000);
+    }
+
+    @Test
+    public void selectsAgainWhenThePbxWinsASelectButSendsNothing() throws InterruptedException {
+        dataLayer.setJournal(null);
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.name("101", "A"), Priority.BULK);
+        awaitState(DataLayerImpl.LinkState.SELECTING, 1000);
+
+        dataLayer.onMessage("1!\u0005".getBytes());
+        awaitState(DataLayerImpl.LinkState.IDLE, 1000);
+
+        /* After the retry delay */
+        awaitState(DataLayerImpl.LinkState.SELECTING, 8000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesACommandLongerThanAFrame() {
+        dataLayer.sendMessage(text(FrameEncoder.MAX_TEXT + 1));
+    }
+
+    @Test
+    public void queuesACommandAsLongAsAFrameHolds() throws InterruptedException {
+        dataLayer.start();
+        dataLayer.sendCommand(PbxCommand.raw(text(FrameEncoder.MAX_TEXT)), Priority.BULK);
+
+        awaitDepth(1);
+    }
+
+    @Test
+    public void dropsAReplayedCommandThatCannotBeEncoded() throws IOException, InterruptedException {
+        /* Journaled before commands were checked on the way in */
+        journal.open();
+        journal.append(PbxCommand.raw(text(FrameEncoder.MAX_TEXT + 1)), Priority.BULK);
+        journal.append(PbxCommand.name("102", "BEHIND"), Priority.BULK);
+        journal.close();
+        dataLayer.start();
+        awaitState(DataLayerImpl.LinkState.SELECTING, 1000);
+
+        dataLayer.onMessage(new byte[]{ACK});
+
+        /* The command behind it is selected for again */
+        awaitDepth(1);
+        awaitState(DataLayerImpl.LinkState.SELECTING, 1000);
+        assertEquals(1, journal.getPending());
+    }
+
+    private static String text(int length) {
+        char[] text = new char[length];
+        Arrays.fill(text, 'A');
+        return new String(text);
+    }
+
+    private void awaitState(DataLayerImpl.LinkState expected, long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (dataLayer.getState() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, dataLayer.getState());
+    }
+
+    private void awaitDepth(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (dataLayer.getQueueStats(Priority.BULK).getDepth() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        /* Let a wrong count settle before it is checked */
+        Thread.sleep(100);
+        assertEquals(expected, dataLayer.getQueueStats(Priority.BULK).getDepth());
+    }
+}
@@ -0,0 +1,62 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameEncoderTest {
+    private final FrameEncoder encoder = new FrameEncoder();
+
+    @Test
+    public void encodesRawTextUpToTheLimit() {
+        PbxCommand longest = PbxCommand.raw(text(FrameEncoder.MAX_TEXT));
+
+        assertTrue(FrameEncoder.fits(longest));
+        assertEquals(FrameDecoder.MAX_FRAME_LENGTH, encoder.encode(longest));
+        assertEquals(3, encoder.buffer()[FrameDecoder.MAX_FRAME_LENGTH - 2]);
+    }
+
+    @Test
+    public void refusesRawTextPastTheLimit() {
+        PbxCommand tooLong = PbxCommand.raw(text(FrameEncoder.MAX_TEXT + 1));
+
+        assertFalse(FrameEncoder.fits(tooLong));
+        try {
+            encoder.encode(tooLong);
+            fail("encoded " + (FrameEncoder.MAX_TEXT + 1) + " characters");
+        } catch (IllegalArgumentException expected) {
+            /* fits() and encode() agree */
+        }
+    }
+
+    @Test
+    public void fitsAgreesWithEncodeForARestriction() {
+        /* Prefix, extension and the two pairs of spaces take 16 characters */
+        PbxCommand longest = PbxCommand.restriction("101", text(FrameEncoder.MAX_TEXT - 16));
+        PbxCommand tooLong = PbxCommand.restriction("101", text(FrameEncoder.MAX_TEXT - 15));
+
+        assertTrue(FrameEncoder.fits(longest));
+        assertEquals(FrameDecoder.MAX_FRAME_LENGTH, encoder.encode(longest));
+        assertFalse(FrameEncoder.fits(tooLong));
+    }
+
+    @Test
+    public void cutsAnOverlongNameToItsField() {
+        PbxCommand command = PbxCommand.name("101", text(1000));
+
+        assertTrue(FrameEncoder.fits(command));
+        assertEquals(1 + 8 + 4 + 2 + PbxCommand.NAME_WIDTH + 2, encoder.encode(command));
+    }
+
+    private static String text(int length) {
+        char[] text = new char[length];
+        Arrays.fill(text, 'A');
+        return new String(text);
+    }
+}
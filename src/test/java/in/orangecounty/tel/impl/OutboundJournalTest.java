@@ -0,0 +1,177 @@
+package in.orangecounty.tel.impl;
+
+import in.orangecounty.tel.PbxCommand;
+import in.orangecounty.tel.Priority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+    /* Magic and version */
+    private static final int HEADER = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private OutboundJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "link.journal");
+        journal = new OutboundJournal(file, 4096, 1000);
+        assertTrue(journal.open().isEmpty());
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void replaysPendingCommandsOldestFirstWithTheirLanes() throws IOException {
+        long first = journal.append(PbxCommand.restriction("101", "1"), Priority.INTERACTIVE);
+        long second = journal.append(PbxCommand.name("102", "SMITH"), Priority.BULK);
+        long third = journal.append(PbxCommand.raw("1!L7007F  "), Priority.STATUS);
+        journal.append(PbxCommand.name("104", "JONES"), Priority.BULK);
+        journal.complete(second);
+
+        List<OutboundJournal.Entry> entries = reopen();
+
+        assertEquals(3, entries.size());
+        assertEquals(first, entries.get(0).getSequence());
+        assertEquals(PbxCommand.Function.SET_RESTRICTION, entries.get(0).getCommand().getFunction());
+        assertEquals("101", entries.get(0).getCommand().getExtension());
+        assertEquals("1", entries.get(0).getCommand().getArgument());
+        assertEquals(Priority.INTERACTIVE, entries.get(0).getPriority());
+        assertEquals(third, entries.get(1).getSequence());
+        assertEquals(PbxCommand.Function.RAW, entries.get(1).getCommand().getFunction());
+        assertEquals("1!L7007F  ", entries.get(1).getCommand().getArgument());
+        assertEquals(Priority.STATUS, entries.get(1).getPriority());
+        assertEquals("JONES", entries.get(2).getCommand().getArgument());
+        assertEquals(Priority.BULK, entries.get(2).getPriority());
+    }
+
+    @Test
+    public void sequenceNumbersContinueAfterReopen() throws IOException {
+        journal.append(PbxCommand.name("101", "A"), Priority.BULK);
+        long last = journal.append(PbxCommand.name("102", "B"), Priority.BULK);
+
+        reopen();
+
+        assertEquals(last + 1, journal.append(PbxCommand.name("103", "C"), Priority.BULK));
+    }
+
+    @Test
+    public void ignoresATornRecordAtTheTail() throws IOException {
+        journal.append(PbxCommand.name("101", "KEPT"), Priority.BULK);
+        journal.append(PbxCommand.name("102", "TORN"), Priority.BULK);
+        journal.close();
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(HEADER);
+            int second = HEADER + 8 + raw.readInt();
+            /* The length made it to disk but the end of the record did not */
+            raw.seek(second + 12);
+            raw.writeLong(0);
+        } finally {
+            raw.close();
+        }
+
+        List<OutboundJournal.Entry> entries = journal.open();
+
+        assertEquals(1, entries.size());
+        assertEquals("KEPT", entries.get(0).getCommand().getArgument());
+        /* The next append overwrites the damaged record and is replayed */
+        journal.append(PbxCommand.name("103", "AFTER"), Priority.BULK);
+        entries = reopen();
+        assertEquals(2, entries.size());
+        assertEquals("AFTER", entries.get(1).getCommand().getArgument());
+    }
+
+    @Test
+    public void rewindsWhenTheLastPendingCommandCompletes() throws IOException {
+        long first = journal.append(PbxCommand.name("101", "A"), Priority.BULK);
+        long second = journal.append(PbxCommand.name("102", "B"), Priority.BULK);
+        journal.complete(first);
+        assertEquals(1, journal.getPending());
+
+        journal.complete(second);
+
+        assertEquals(0, journal.getPending());
+        journal.close();
+        assertEquals("end marker at the top", 0, readInt(HEADER));
+        assertTrue(journal.open().isEmpty());
+    }
+
+    @Test
+    public void compactsWhenFullOfCompletedCommands() throws IOException {
+        journal.close();
+        file = folder.newFile("small.journal");
+        journal = new OutboundJournal(file, 512, 1000);
+        journal.open();
+        long kept = journal.append(PbxCommand.name("100", "KEPT"), Priority.BULK);
+        for (int i = 0; i < 200; i++) {
+            journal.complete(journal.append(PbxCommand.name(String.valueOf(200 + i), "GUEST" + i), Priority.BULK));
+        }
+
+        assertEquals(1, journal.getPending());
+        journal.close();
+        assertEquals("compaction does not grow a journal with room left", 512, file.length());
+        List<OutboundJournal.Entry> entries = journal.open();
+        assertEquals(1, entries.size());
+        assertEquals(kept, entries.get(0).getSequence());
+    }
+
+    @Test
+    public void growsWhenPendingCommandsFillIt() throws IOException {
+        journal.close();
+        file = folder.newFile("tiny.journal");
+        journal = new OutboundJournal(file, 256, 1000);
+        journal.open();
+        for (int i = 0; i < 100; i++) {
+            journal.append(PbxCommand.name(String.valueOf(1000 + i), "GUEST" + i), Priority.BULK);
+        }
+
+        List<OutboundJournal.Entry> entries = reopen();
+
+        assertTrue(file.length() >= 2 * 256);
+        assertEquals(100, entries.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(String.valueOf(1000 + i), entries.get(i).getCommand().getExtension());
+        }
+    }
+
+    @Test
+    public void appendAfterCloseIsNotJournaled() throws IOException {
+        journal.close();
+
+        assertEquals(0, journal.append(PbxCommand.name("101", "LATE"), Priority.BULK));
+        journal.complete(1);
+    }
+
+    private List<OutboundJournal.Entry> reopen() throws IOException {
+        journal.close();
+        return journal.open();
+    }
+
+    private int readInt(long offset) throws IOException {
+        RandomAccessFile raw = new RandomAccessFile(file, "r");
+        try {
+            raw.seek(offset);
+            return raw.readInt();
+        } finally {
+            raw.close();
+        }
+    }
+}